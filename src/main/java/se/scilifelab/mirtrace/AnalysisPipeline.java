@@ -23,15 +23,11 @@ import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.apache.commons.lang3.ArrayUtils;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Yrin Eldfjell
@@ -49,8 +45,13 @@ class AnalysisPipeline extends Thread {
 	/* Member variables. */
 	QCStatistics qcStatistics;
 	DNASequenceHashMap hm;
+	/* Classifications of the sequences of 'hm' made while parsing, null 
+	 * unless online classification is enabled. See OnlineClassifier. */
+	SequenceClassificationTable onlineClassifications;
 	byte[] adapterSequence = new byte[0];
 	Config config;
+	SearchEngines searchEngines;
+	/* Only set once the hash map is complete, see processCompletedHashmap(). */
 	RNATypeSearchEngine rnaTypeSearchEngine;
 	CladeSearchEngine cladeSearchEngine;	
 	List<String> warnings = new ArrayList<String>();
@@ -58,12 +59,11 @@ class AnalysisPipeline extends Thread {
 	AnalysisTaskManager taskManager;
 	Integer phredOffset;
 
-	AnalysisPipeline(AnalysisTaskManager taskManager, AnalysisTask thisTask, RNATypeSearchEngine rnaTypeSearchEngine,
-			CladeSearchEngine cladeSearchEngine, int initialBuckets, Integer phredOffset) {
+	AnalysisPipeline(AnalysisTaskManager taskManager, AnalysisTask thisTask, SearchEngines searchEngines,
+			int initialBuckets, Integer phredOffset) {
 		this.config = taskManager.config;
 		this.analysisTask = thisTask;
-		this.rnaTypeSearchEngine = rnaTypeSearchEngine;
-		this.cladeSearchEngine = cladeSearchEngine;
+		this.searchEngines = searchEngines;
 		this.taskManager = taskManager;
 		this.phredOffset = phredOffset;
 		if (thisTask.getAdapter() != null) {
@@ -112,6 +112,12 @@ class AnalysisPipeline extends Thread {
 			for (String w : warnings) {
 				analysisTask.addWarning(w);
 			}
+			if (onlineClassifications != null) {
+				onlineClassifications.close();
+			}
+			if (hm != null) {
+				taskManager.poolHashMap(hm);
+			}
 			hm = null;
 			taskManager.decreaseAllocatedBuckets(analysisTask.getBucketsAllocated());
 			analysisTask.setBucketsAllocated(0);
@@ -137,7 +143,11 @@ class AnalysisPipeline extends Thread {
 		}
 
 		/* Run pipeline. */
-		this.hm = new DNASequenceHashMap(analysisTask.bucketsAllocated);
+		this.hm = newHashMap(analysisTask.bucketsAllocated);
+		if (taskManager.getOnlineClassifier() != null) {
+			onlineClassifications = new SequenceClassificationTable();
+			hm.setNewSequenceListener(taskManager.getOnlineClassifier().newListener(onlineClassifications));
+		}
 		parseSequenceFile(analysisTask.getFilename(), phredOffset);		
 		if (hm.getSeqCountOverflowWarning()) {
 			warnings.add("WARNING: Read counts truncated past 2G. Sample: " + analysisTask.getVerbosename());
@@ -258,22 +268,20 @@ class AnalysisPipeline extends Thread {
 	 * Fails if either the most common nucleotide comprises more than 90% of
 	 * the sequence, or a single nucleotide is repeated for at least 50% of the
 	 * sequence length.
-	 * @param sequence The sequence to test.
+	 * @param packedSeq The sequence to test, 2-bit packed like the sequences of DNASequenceHashMap.
 	 * @return true if sequence has valid complexity.
 	 */
-	boolean validComplexity(byte[] sequence, int seqLen) {
-		int a = 0;
-		int c = 0;
-		int g = 0;
-		int t = 0;
+	static boolean validComplexity(long[] packedSeq, int seqLen) {
+		int[] baseCounts = new int[4];
 		int i;
 		int allowedRepeatLength = seqLen / 2;
 		int allowedIdenticalCount = (int) (seqLen * 0.9);
 		int currentRepeatLength = 0;
-		byte prevNucleotide = 0;
+		int prevNucleotide = -1;
 		for (i = 0; i < seqLen; i++) {
+			int nucleotide = (int) (packedSeq[i >>> 5] >>> ((i & 31) << 1)) & 3;
 			/* Repeat test */
-			if (sequence[i] == prevNucleotide) {
+			if (nucleotide == prevNucleotide) {
 				currentRepeatLength++;
 			} else {
 				currentRepeatLength = 0;
@@ -283,22 +291,13 @@ class AnalysisPipeline extends Thread {
 			}
 			
 			/* Counts for total fraction test */
-			if (sequence[i] == 'A') {
-				a++;
-			} else if (sequence[i] == 'C') {
-				c++;
-			} else if (sequence[i] == 'G') {
-				g++;
-			} else if (sequence[i] == 'T') {
-				t++;
-			}
-			prevNucleotide = sequence[i];
-		}
-		if ((a > allowedIdenticalCount) ||
-				(c > allowedIdenticalCount) || 
-				(g > allowedIdenticalCount) || 
-				(t > allowedIdenticalCount)) {
-			return false;
+			baseCounts[nucleotide]++;
+			prevNucleotide = nucleotide;
+		}
+		for (int count : baseCounts) {
+			if (count > allowedIdenticalCount) {
+				return false;
+			}
 		}
 		return true;
 	}
@@ -499,6 +498,19 @@ class AnalysisPipeline extends Thread {
 		parser.close(); 
 	}
 
+	private DNASequenceHashMap newHashMap(int buckets) {
+		DNASequenceHashMap pooled = taskManager.acquireHashMap(analysisTask, buckets);
+		if (pooled != null) {
+			if (config.getVerbosityLevel() > 2) {
+				long curTime = System.currentTimeMillis();
+				System.err.println("[" + (curTime / 1000) + "] " + "Reusing pooled HashMap with " + 
+						pooled.getCapacity() + " buckets for sample '" + analysisTask.getFilename() + "'.");
+			}
+			return pooled;
+		}
+		return new DNASequenceHashMap(buckets);
+	}
+	
 	private void reallocateHashmap(int newBucketTarget) {
 		long startTime = System.currentTimeMillis();
 		if (config.getVerbosityLevel() > 1) {
@@ -507,13 +519,33 @@ class AnalysisPipeline extends Thread {
 		}
 		int oldBucketCount = hm.getCapacity();
 		hm.initIterator();
-		DNASequenceHashMap newHM = new DNASequenceHashMap(newBucketTarget);
+		DNASequenceHashMap newHM = newHashMap(newBucketTarget);
+		SequenceClassificationTable oldClassifications = onlineClassifications;
+		if (oldClassifications != null) {
+			onlineClassifications = new SequenceClassificationTable();
+		}
 		DNASequenceHashMapEntry entry = new DNASequenceHashMapEntry();
+		int newSeqNum = 0;
 		while (hm.iteratorHasNext()) {
 			hm.iteratorFetchNext(entry);
 			newHM.putSequence(entry.getSeq(), entry.getLength(), 
 					entry.getAdapterDetected(), entry.getFirstDetectedDepth(), entry.getCount());
+			/* The copies are numbered in the order they are put. */
+			if (oldClassifications != null) {
+				SequenceClassification classification = oldClassifications.get(entry.seqNum);
+				if (classification != null) {
+					onlineClassifications.put(newSeqNum, classification);
+				}
+			}
+			newSeqNum++;
+		}
+		/* Only set now, as the copied sequences are not new. Results for 
+		 * sequences still queued for the old hash map are dropped. */
+		if (oldClassifications != null) {
+			oldClassifications.close();
+			newHM.setNewSequenceListener(taskManager.getOnlineClassifier().newListener(onlineClassifications));
 		}
+		taskManager.poolHashMap(hm);
 		hm = newHM;
 		long endTime = System.currentTimeMillis();
 		if (config.getVerbosityLevel() > 1) {
@@ -594,12 +626,127 @@ class AnalysisPipeline extends Thread {
 		}
 	}
 	
+	/** Classifies ranges of the unique sequences of the completed hash map 
+	 * and collects their statistics. Ranges are classified in parallel 
+	 * (see processCompletedHashmap()), so each worker has search state and 
+	 * statistics of its own. The statistics are merged into 'qcStatistics' 
+	 * once all sequences are classified.
+	 */
+	class ClassificationWorker {
+		
+		QCStatistics workerStatistics = new QCStatistics();
+		SequenceClassifier classifier;
+		/* Unique sequences are classified Config.SEARCH_BATCH_SIZE at a 
+		 * time, see SequenceClassifier.classifyBatch(). */
+		DNASequenceHashMapEntry[] batch = new DNASequenceHashMapEntry[Config.SEARCH_BATCH_SIZE];
+		boolean[] batchSeqOK = new boolean[Config.SEARCH_BATCH_SIZE];
+		boolean[] batchToClassify = new boolean[Config.SEARCH_BATCH_SIZE];
+		SequenceClassification[] batchClassifications = new SequenceClassification[Config.SEARCH_BATCH_SIZE];
+		
+		ClassificationWorker(PersistentClassificationCache persistentCache) {
+			classifier = new SequenceClassifier(config, rnaTypeSearchEngine, cladeSearchEngine, 
+					taskManager.getClassificationCache(), persistentCache);
+		}
+		
+		/* Classifies entries[from..to). Sets the classification of each 
+		 * entry in 'classifications', or null if it fails the quality filter. */
+		void classifyRange(DNASequenceHashMapEntry[] entries, SequenceClassification[] classifications, 
+				int from, int to) {
+			for (int batchStart = from; batchStart < to; batchStart += Config.SEARCH_BATCH_SIZE) {
+				int batchSize = Math.min(Config.SEARCH_BATCH_SIZE, to - batchStart);
+				for (int b=0; b < batchSize; b++) {
+					batch[b] = entries[batchStart + b];
+					batchSeqOK[b] = qualityFilter(batch[b]);
+					/* Sequences classified while parsing only have their statistics stored. */
+					batchClassifications[b] = null;
+					if (batchSeqOK[b] && (onlineClassifications != null)) {
+						batchClassifications[b] = onlineClassifications.get(batch[b].seqNum);
+					}
+					batchToClassify[b] = batchSeqOK[b] && (batchClassifications[b] == null);
+				}
+				classifier.classifyBatch(batch, batchToClassify, batchSize, batchClassifications);
+				for (int b=0; b < batchSize; b++) {
+					if (batchSeqOK[b]) {
+						storeClassification(batch[b], batchClassifications[b]);
+						classifications[batchStart + b] = batchClassifications[b];
+					} else {
+						classifications[batchStart + b] = null;
+					}
+				}
+			}
+		}
+		
+		/* Quality filter and store statistics. Returns true if all tests passed. */
+		private boolean qualityFilter(DNASequenceHashMapEntry entry) {
+			int seqLen = entry.getLength();
+			int seqCount = entry.getCount();
+			workerStatistics.storeSequenceLen(seqLen, seqCount);
+			if (!validComplexity(entry.getPackedSeq(), seqLen)) {
+				workerStatistics.statsQC[QCStatistics.QC_STATUS_VALID_QUALITY] += seqCount;
+				return false;
+			}
+			if (seqLen < Config.MIN_ALLOWED_SEQ_LEN) {
+				workerStatistics.statsQC[QCStatistics.QC_STATUS_VALID_COMPLEXITY] += seqCount;
+				return false;
+			}
+			if (entry.getAdapterDetected()) {
+				workerStatistics.statsQC[QCStatistics.QC_STATUS_VALID_LENGTH_AND_ADAPTER] += seqCount;
+			} else {
+				workerStatistics.statsQC[QCStatistics.QC_STATUS_VALID_LENGTH] += seqCount;	
+			}
+			return true;
+		}
+		
+		/* Stores the statistics of a QC-passed entry. */
+		private void storeClassification(DNASequenceHashMapEntry entry, SequenceClassification classification) {
+			int seqCount = entry.getCount();
+			CladeSearchEngine.CladeSearchResult cladeResult = classification.cladeResult;
+			workerStatistics.uniqueQCPassedSeqsCount++;
+			if (config.qcMode()) {
+				workerStatistics.statsRNAType[classification.rnaType] += seqCount;
+				if (classification.isContaminantMatch()) {
+					workerStatistics.statsRNATypeContaminantReads += seqCount;
+				}
+				for (int refSeqId : classification.rnaTypeRefSeqIds) {
+					workerStatistics.storeFoundRNARead(classification.rnaType, refSeqId);
+					if (classification.rnaType == Config.RNA_TYPE_MI_RNA) {
+						/* Determine read depth (a.k.a. complexity) */
+						workerStatistics.storeMiRNADetectionDepth(refSeqId, entry.getFirstDetectedDepth());
+					}
+				}
+			}
+			if (cladeResult != null) {
+				workerStatistics.storeFoundCladeFamily(cladeResult.cladeFound, cladeResult.familyIndex);
+				workerStatistics.statsClades[cladeResult.cladeFound] += seqCount;
+
+				boolean countStored = false;
+				for (int globalRefSeqId : classification.miRBaseEntries) {
+					int miRBaseId = cladeSearchEngine.getMiRBaseId(globalRefSeqId);
+					/* The matching is exact, so the first matching entry 
+					 * identifies the sequence prefix. */
+					int prefixKey = classification.miRBaseEntries[0];
+					CladeFamilyRecord r = workerStatistics.getCladeSpecificmiRBaseEntry(prefixKey);
+					if (r == null) {
+						String usedSeqPrefix = new String(entry.getSeq(), 0, Config.CLADE_DB_SEQ_LEN_CUTOFF, 
+								StandardCharsets.UTF_8);
+						r = new CladeFamilyRecord(usedSeqPrefix, cladeResult.cladeFound);
+						workerStatistics.storeCladeSpecificmiRBaseEntries(prefixKey, r);
+					}
+					r.putmiRBaseId(cladeSearchEngine.miRBaseIds[miRBaseId], 
+							cladeSearchEngine.miRBaseFamilyIds[miRBaseId]);
+					if (!countStored) {
+						r.increaseCount(seqCount);
+						countStored = true;
+					}
+				}
+			}
+		}
+		
+	}
+	
 	void processCompletedHashmap() throws IOException {
 		int seqNumUniqueReads = 0;
 		int seqNumUnmappedReads = 0;
-		int seqLen;
-		int seqCount;
-		boolean seqOK;
 		
 		/* Final output filenames. */
 		File uniqueReadsFASTAFile = new File(config.getUniqueReadsOutputDirectory(), 
@@ -609,8 +756,18 @@ class AnalysisPipeline extends Thread {
 
 		BufferedOutputStream fUniqueReads = null;
 		BufferedOutputStream fUnmappedReads = null;
-		Map<Integer,Integer> lowestSeqDetectedLocations = new TreeMap<Integer,Integer>();
-		Pattern RE_MIRBASE_ID = Pattern.compile("^([^-]+-miR-?[^-]+).*?$");
+		
+		/* Sequences still queued for online classification are classified 
+		 * below instead. */
+		if (onlineClassifications != null) {
+			onlineClassifications.close();
+		}
+		
+		/* The databases are loaded in the background while the first samples 
+		 * are parsed; this is the first point where they are needed. */
+		rnaTypeSearchEngine = searchEngines.getRNATypeSearchEngine();
+		cladeSearchEngine = searchEngines.getCladeSearchEngine();
+		PersistentClassificationCache persistentCache = taskManager.getPersistentClassificationCache();
 
 		if (config.writeFASTA()) {
 			fUniqueReads = new BufferedOutputStream(new 
@@ -620,115 +777,59 @@ class AnalysisPipeline extends Thread {
 						FileOutputStream(unmappedReadsFASTAFile));
 			}
 		}
+		
+		/* The unique sequences are fetched in order, a window at a time. The 
+		 * ranges of a window are classified in parallel, then the window is 
+		 * written to the FASTA files in order. */
+		ClassificationWorker[] workers = new ClassificationWorker[config.getNumThreads()];
+		for (int w=0; w < workers.length; w++) {
+			workers[w] = new ClassificationWorker(persistentCache);
+		}
+		DNASequenceHashMapEntry[] window = new DNASequenceHashMapEntry[workers.length * Config.CLASSIFICATION_RANGE_SIZE];
+		SequenceClassification[] windowClassifications = new SequenceClassification[window.length];
+		for (int i=0; i < window.length; i++) {
+			window[i] = new DNASequenceHashMapEntry();
+		}
 		hm.initIterator();
-		DNASequenceHashMapEntry entry = new DNASequenceHashMapEntry();
 		while (hm.iteratorHasNext()) {
-			hm.iteratorFetchNext(entry);
-			seqLen = entry.getLength();
-			seqCount = entry.getCount();
-			seqOK = false;
-
-			/* Quality filter and store statistics. */
-			qcStatistics.storeSequenceLen(seqLen, seqCount);
-			if (validComplexity(entry.getSeq(), seqLen)) {
-				if (seqLen < Config.MIN_ALLOWED_SEQ_LEN) {
-					qcStatistics.statsQC[QCStatistics.QC_STATUS_VALID_COMPLEXITY] += seqCount;
-				} else {
-					/* All tests passed */
-					seqOK = true;
-					if (entry.getAdapterDetected()) {
-						qcStatistics.statsQC[QCStatistics.QC_STATUS_VALID_LENGTH_AND_ADAPTER] += seqCount;
-					} else {
-						qcStatistics.statsQC[QCStatistics.QC_STATUS_VALID_LENGTH] += seqCount;	
-					}
-				}
-			} else {
-				qcStatistics.statsQC[QCStatistics.QC_STATUS_VALID_QUALITY] += seqCount;
+			int windowSize = 0;
+			while (windowSize < window.length && hm.iteratorHasNext()) {
+				hm.iteratorFetchNext(window[windowSize]);
+				windowSize++;
 			}
-			if (seqOK) {
-				qcStatistics.uniqueQCPassedSeqsCount++;
-				String matchingCategory = "not_mapped";
-				if (config.qcMode()) {
-					/* Identify RNA type. */
-					matchingCategory = rnaTypeSearchEngine.search(entry.getSeq(), seqLen);
-					
-					if (matchingCategory == null) {
-						matchingCategory = "unknown";
-					}
-					if (matchingCategory.equals("mirna")) {
-						qcStatistics.statsRNAType[Config.RNA_TYPE_MI_RNA] += seqCount;
-						/* Read depth stats now stored in the method below. */
-						rnaTypeSearchEngine.processRefSeqIdSearches(Config.RNA_TYPE_MI_RNA, entry, qcStatistics, lowestSeqDetectedLocations);
-					} else if (matchingCategory.equals("rrna")) {
-						qcStatistics.statsRNAType[Config.RNA_TYPE_R_RNA] += seqCount;
-						rnaTypeSearchEngine.processRefSeqIdSearches(Config.RNA_TYPE_R_RNA, entry, qcStatistics, null);
-					} else if (matchingCategory.equals("trna")) {
-						qcStatistics.statsRNAType[Config.RNA_TYPE_T_RNA] += seqCount;
-						rnaTypeSearchEngine.processRefSeqIdSearches(Config.RNA_TYPE_T_RNA, entry, qcStatistics, null);
-					} else if (matchingCategory.equals("artifacts")) {
-						qcStatistics.statsRNAType[Config.RNA_TYPE_ART_RNA] += seqCount;
-						rnaTypeSearchEngine.processRefSeqIdSearches(Config.RNA_TYPE_ART_RNA, entry, qcStatistics, null);
-					} else {
-						qcStatistics.statsRNAType[Config.RNA_TYPE_UNKNOWN] += seqCount;
-					}
-				}
-				/* Identify matching clade. */
-				CladeSearchEngine.CladeSearchResult cladeResult;
-				cladeResult = cladeSearchEngine.search(entry.getSeq(), seqLen);
-				if (cladeResult != null) {
-					qcStatistics.storeFoundCladeFamily(cladeResult.cladeFound, cladeResult.familyId);
-					qcStatistics.statsClades[cladeResult.cladeFound] += seqCount;
-					
-					/* Inquire the database for all mature hairpin entries that matches the current seq prefix exactly. */
-					List<String> foundRawmiRBaseIds = cladeSearchEngine.findAllMiRBaseEntries(entry.getSeq(), seqLen);
-
-					boolean countStored = false;
-					for (String e : foundRawmiRBaseIds) {
-						Matcher m = RE_MIRBASE_ID.matcher(e);
-						if (!m.matches()) {
-							throw new RuntimeException("Internal error in clade database: invalid seq record id.");
-						}
-						String miRBaseId = m.group(1);
-						String usedSeqPrefix = new String(
-								ArrayUtils.subarray(entry.getSeq(), 0, Config.CLADE_DB_SEQ_LEN_CUTOFF),
-								"UTF-8"
-						);
-						CladeFamilyRecord r;
-						if (qcStatistics.hasCladeSpecificmiRBaseEntry(usedSeqPrefix)) {
-							r = qcStatistics.getCladeSpecificmiRBaseEntry(usedSeqPrefix);
-						} else {
-							r = new CladeFamilyRecord(usedSeqPrefix, cladeResult.cladeFound);
-							qcStatistics.storeCladeSpecificmiRBaseEntries(usedSeqPrefix, r);
-						}
-						r.putmiRBaseId(miRBaseId);
-						if (!countStored) {
-							r.increaseCount(seqCount);
-							countStored = true;
-						}
-					}
+			classifyWindow(workers, window, windowClassifications, windowSize);
+			if (!config.writeFASTA()) {
+				continue;
+			}
+			for (int i=0; i < windowSize; i++) {
+				DNASequenceHashMapEntry entry = window[i];
+				SequenceClassification classification = windowClassifications[i];
+				if (classification == null) {
+					/* Failed the quality filter. */
+					continue;
 				}
+				String matchingCategory = classification.getRNATypeName();
+				CladeSearchEngine.CladeSearchResult cladeResult = classification.cladeResult;
 				
 				/* Write sequence to FASTA output */
-				if (config.writeFASTA()) {
-					String cladeIdentifier = null;
-					String cladeFamilyId = null;
-					if (cladeResult != null) {
-						cladeIdentifier = cladeResult.cladeString;
-						cladeFamilyId = cladeResult.familyId;
-					}
-					
-					/* Write to "all" file. */
-					writeToFastaFile(entry.getSeq(), seqNumUniqueReads, entry.getCount(), 
-							matchingCategory, cladeIdentifier, cladeFamilyId, seqLen, fUniqueReads, config.writeCollapsedFASTA());
-					seqNumUniqueReads++;
-					
-					if (config.qcMode()) {
-						/* If unknown rna type, write to unmapped file. */
-						if (matchingCategory == "unknown") {
-							writeToFastaFile(entry.getSeq(), seqNumUnmappedReads, entry.getCount(),
-									matchingCategory, cladeIdentifier, cladeFamilyId, seqLen, fUnmappedReads, config.writeCollapsedFASTA());
-							seqNumUnmappedReads++;
-						}
+				String cladeIdentifier = null;
+				String cladeFamilyId = null;
+				if (cladeResult != null) {
+					cladeIdentifier = cladeResult.cladeString;
+					cladeFamilyId = cladeResult.familyId;
+				}
+			
+				/* Write to "all" file. */
+				writeToFastaFile(entry.getSeq(), seqNumUniqueReads, entry.getCount(), 
+						matchingCategory, cladeIdentifier, cladeFamilyId, entry.getLength(), fUniqueReads, config.writeCollapsedFASTA());
+				seqNumUniqueReads++;
+			
+				if (config.qcMode()) {
+					/* If unknown rna type, write to unmapped file. */
+					if (matchingCategory == "unknown") {
+						writeToFastaFile(entry.getSeq(), seqNumUnmappedReads, entry.getCount(),
+								matchingCategory, cladeIdentifier, cladeFamilyId, entry.getLength(), fUnmappedReads, config.writeCollapsedFASTA());
+						seqNumUnmappedReads++;
 					}
 				}
 			}
@@ -740,15 +841,43 @@ class AnalysisPipeline extends Thread {
 				fUnmappedReads.close();
 			}
 		}
+		
+		/* Merged in worker order, so that the result is the same every run. */
+		for (ClassificationWorker worker : workers) {
+			qcStatistics.merge(worker.workerStatistics);
+		}
+		qcStatistics.storeComplexityFromDetectionDepths();
+	}
 	
-		qcStatistics.storeComplexity(0);
-		for (Map.Entry<Integer, Integer> detectedLocation : lowestSeqDetectedLocations.entrySet()) {
-			if (detectedLocation.getKey() != null) {
-				//long readDepth = (long) (qcStatistics.getAllSeqsCount() * detectedLocation.getValue()); 
-				//qcStatistics.storeComplexity(readDepth);
-				qcStatistics.storeComplexity(detectedLocation.getValue());
-			}
+	/* Classifies window[0..windowSize) in ranges of Config.CLASSIFICATION_RANGE_SIZE, 
+	 * the r:th range by workers[r], in the classification pool shared by all 
+	 * pipelines (so that the cores of finished pipelines are put to use). */
+	@SuppressWarnings("serial")
+	private void classifyWindow(ClassificationWorker[] workers, final DNASequenceHashMapEntry[] window, 
+			final SequenceClassification[] classifications, int windowSize) {
+		if (windowSize <= Config.CLASSIFICATION_RANGE_SIZE) {
+			/* Not worth handing over to the pool. */
+			workers[0].classifyRange(window, classifications, 0, windowSize);
+			return;
 		}
+		final List<RecursiveAction> ranges = new ArrayList<RecursiveAction>();
+		for (int r=0; r * Config.CLASSIFICATION_RANGE_SIZE < windowSize; r++) {
+			final ClassificationWorker worker = workers[r];
+			final int from = r * Config.CLASSIFICATION_RANGE_SIZE;
+			final int to = Math.min(from + Config.CLASSIFICATION_RANGE_SIZE, windowSize);
+			ranges.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					worker.classifyRange(window, classifications, from, to);
+				}
+			});
+		}
+		taskManager.getClassificationPool().invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(ranges);
+			}
+		});
 	}
 	
 	void generateQCWarnings() {
@@ -830,7 +959,7 @@ class AnalysisPipeline extends Thread {
 		}
 		
 		/* COMPLEXITY */
-		int found = qcStatistics.getFoundRNAReads(Config.RNA_TYPE_MI_RNA).size();
+		int found = qcStatistics.getFoundRNAReads(Config.RNA_TYPE_MI_RNA).cardinality();
 		if (found < (Config.QC_FLAG_COMPLEXITY_MIN_GENES_REQUIRED_PERCENT * 
 				rnaTypeSearchEngine.getRefSeqCounts(Config.RNA_TYPE_MI_RNA))) {
 			double miRNAFoundFrac = found / rnaTypeSearchEngine.getRefSeqCounts(Config.RNA_TYPE_MI_RNA);
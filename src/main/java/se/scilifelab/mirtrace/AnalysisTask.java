@@ -81,13 +81,12 @@ class AnalysisTask implements Comparable<AnalysisTask> {
 	}
 	
 	AnalysisPipeline start(AnalysisTaskManager taskManager, int initialBuckets, 
-			RNATypeSearchEngine rnaTypeSearchEngine, CladeSearchEngine cladeSearchEngine) {
+			SearchEngines searchEngines) {
 		taskManager.increaseAllocatedBuckets(initialBuckets);
 		AnalysisPipeline pipelineThread = new AnalysisPipeline(
 				taskManager, 
 				this, 
-				rnaTypeSearchEngine, 
-				cladeSearchEngine, 
+				searchEngines, 
 				initialBuckets,
 				phredOffset
 		);
@@ -23,7 +23,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 
 class AnalysisTaskManager {
 
@@ -33,14 +35,31 @@ class AnalysisTaskManager {
 			new ConcurrentLinkedQueue<AnalysisTask>();
 	private long allocatedBuckets = 0;
 	private long totalBuckets = 0;
-	RNATypeSearchEngine rnaTypeSearchEngine; 
-	CladeSearchEngine cladeSearchEngine;
+	/* Hash maps of finished tasks, oldest first. Their buckets are not part of 
+	 * allocatedBuckets; pooled maps are dropped whenever memory is needed. */
+	private List<DNASequenceHashMap> hashMapPool = new ArrayList<DNASequenceHashMap>();
+	private long pooledBuckets = 0;
+	SearchEngines searchEngines;
+	ClassificationCache classificationCache; /* Shared by all pipelines, null if disabled. */
+	/* null if disabled. Opened on first use, as its validity depends on the 
+	 * databases, which are still loading when the first tasks start. */
+	PersistentClassificationCache persistentClassificationCache;
+	private boolean persistentClassificationCacheOpened = false;
+	/* Classifies the unique sequences of all pipelines, see 
+	 * AnalysisPipeline.processCompletedHashmap(). */
+	ForkJoinPool classificationPool;
+	OnlineClassifier onlineClassifier; /* null if disabled. */
 	
-	AnalysisTaskManager(Config config, RNATypeSearchEngine rnaTypeSearchEngine, 
-			CladeSearchEngine cladeSearchEngine) {
+	AnalysisTaskManager(Config config, SearchEngines searchEngines) {
 		this.config = config;
-		this.rnaTypeSearchEngine = rnaTypeSearchEngine;
-		this.cladeSearchEngine = cladeSearchEngine;
+		this.searchEngines = searchEngines;
+		if (config.getClassificationCacheSize() > 0) {
+			this.classificationCache = new ClassificationCache(config.getClassificationCacheSize());
+		}
+		this.classificationPool = new ForkJoinPool(config.getNumThreads());
+		if (config.onlineClassification()) {
+			this.onlineClassifier = new OnlineClassifier(config, this);
+		}
 	}	
 	
 	void fail(String msg) {
@@ -59,6 +78,33 @@ class AnalysisTaskManager {
 		pendingTasks.add(task);
 	}
 	
+	ClassificationCache getClassificationCache() {
+		return classificationCache;
+	}
+	
+	ForkJoinPool getClassificationPool() {
+		return classificationPool;
+	}
+	
+	OnlineClassifier getOnlineClassifier() {
+		return onlineClassifier;
+	}
+	
+	/* Blocks until the databases are loaded. */
+	synchronized PersistentClassificationCache getPersistentClassificationCache() {
+		if (!persistentClassificationCacheOpened && (config.getClassificationCacheFile() != null)) {
+			persistentClassificationCacheOpened = true;
+			CladeSearchEngine cladeSearchEngine = searchEngines.getCladeSearchEngine();
+			persistentClassificationCache = PersistentClassificationCache.open(
+					config.getClassificationCacheFile(),
+					PersistentClassificationCache.databaseFingerprint(config, 
+							searchEngines.getRNATypeSearchEngine(), cladeSearchEngine),
+					PersistentClassificationCache.slotCountFor(config.getClassificationCacheFileSize()), 
+					cladeSearchEngine);
+		}
+		return persistentClassificationCache;
+	}
+	
 	long getTotalBuckets() {
 		return totalBuckets;
 	}
@@ -75,6 +121,67 @@ class AnalysisTaskManager {
 		allocatedBuckets -= buckets;
 	}
 	
+	/* Drops pooled hash maps (oldest first) until 'buckets' more buckets fit. */
+	private void evictPooledHashMaps(long buckets) {
+		while (!hashMapPool.isEmpty() && (allocatedBuckets + pooledBuckets + buckets > totalBuckets)) {
+			pooledBuckets -= hashMapPool.remove(0).getCapacity();
+		}
+	}
+	
+	/** Hands out a pooled hash map for 'task', which has already reserved
+	 * 'buckets' buckets. The smallest pooled map with at least that capacity 
+	 * is preferred, otherwise the largest one with at least the minimum
+	 * capacity the task needs. The task's reservation is adjusted to the
+	 * capacity of the map; as pooled buckets are already in use, this never
+	 * increases the total. Returns null if no pooled map fits, after 
+	 * making room for a new map of 'buckets' buckets.
+	 */
+	synchronized DNASequenceHashMap acquireHashMap(AnalysisTask task, int buckets) {
+		int minCapacity = DNASequenceHashMap.getActualCapacity(Math.max(task.getMinBucketsNeeded(), 
+				(int) (buckets * Config.HM_POOL_MIN_CAPACITY_FRACTION)));
+		int bestIndex = -1;
+		int bestCapacity = 0;
+		for (int i = 0; i < hashMapPool.size(); i++) {
+			int capacity = hashMapPool.get(i).getCapacity();
+			if (capacity < minCapacity) {
+				continue;
+			}
+			boolean better;
+			if (bestIndex == -1) {
+				better = true;
+			} else if (bestCapacity >= DNASequenceHashMap.getActualCapacity(buckets)) {
+				better = (capacity >= DNASequenceHashMap.getActualCapacity(buckets)) && (capacity < bestCapacity);
+			} else {
+				better = capacity > bestCapacity;
+			}
+			if (better) {
+				bestIndex = i;
+				bestCapacity = capacity;
+			}
+		}
+		if (bestIndex == -1) {
+			evictPooledHashMaps(0);
+			return null;
+		}
+		DNASequenceHashMap hm = hashMapPool.remove(bestIndex);
+		pooledBuckets -= hm.getCapacity();
+		allocatedBuckets -= task.getBucketsAllocated() - hm.getCapacity();
+		task.setBucketsAllocated(hm.getCapacity());
+		evictPooledHashMaps(0);
+		hm.reset();
+		return hm;
+	}
+	
+	/** Keeps a hash map that is no longer used for later reuse. The buckets
+	 * reserved for it must be released separately. */
+	synchronized void poolHashMap(DNASequenceHashMap hm) {
+		hashMapPool.add(hm);
+		pooledBuckets += hm.getCapacity();
+		if (hashMapPool.size() > config.getMaxNumThreads()) {
+			pooledBuckets -= hashMapPool.remove(0).getCapacity();
+		}
+	}
+	
 	synchronized void addTerminatedTask(AnalysisTask task) {
 		terminatedAnalysisTaskQueue.add(task);
 	}
@@ -90,6 +197,7 @@ class AnalysisTaskManager {
 		if (newBucketCount > totalBuckets) {
 			failLowHeapMem(task.getFilename());
 		}
+		evictPooledHashMaps(newBucketCount);
 		if (newBucketCount <= (totalBuckets - allocatedBuckets)) {
 			increaseAllocatedBuckets(newBucketCount);
 			return true;
@@ -103,12 +211,23 @@ class AnalysisTaskManager {
 
 		long totalMem = Runtime.getRuntime().totalMemory();
 		long totalHashMapMem = totalMem - config.getGlolbalMemoryReserve() - 
-				(config.getPerSampelMemoryReserve() * config.getNumAnalysisTasks());
+				(config.getPerSampelMemoryReserve() * config.getNumAnalysisTasks()) - 
+				((long) config.getClassificationCacheSize() * Config.CLASSIFICATION_CACHE_BYTES_PER_ENTRY);
+		if (onlineClassifier != null) {
+			totalHashMapMem -= (long) Config.ONLINE_CLASSIFICATION_QUEUE_SIZE * 
+					Config.ONLINE_CLASSIFICATION_BYTES_PER_QUEUE_SLOT;
+		}
 		if (totalHashMapMem <= 0) {
 			failLowHeapMem(null);
 		}
-		totalBuckets = totalHashMapMem / Config.HM_MEMORY_USAGE_PER_HASH_BUCKET;
+		long bytesPerBucket = Config.HM_MEMORY_USAGE_PER_HASH_BUCKET;
+		if (onlineClassifier != null) {
+			bytesPerBucket += Config.ONLINE_CLASSIFICATION_BYTES_PER_BUCKET;
+		}
+		totalBuckets = totalHashMapMem / bytesPerBucket;
 		allocatedBuckets = 0;
+		hashMapPool.clear();
+		pooledBuckets = 0;
 
 		/* Run QC pipeline. */
 		int numRunningThreads = 0;
@@ -191,7 +310,7 @@ class AnalysisTaskManager {
 						taskIterator.remove();
 						task.setStatus(AnalysisTask.TaskStatus.RUNNING);
 						@SuppressWarnings("unused")
-						AnalysisPipeline pipelineThread = task.start(this, initialBuckets, rnaTypeSearchEngine, cladeSearchEngine);
+						AnalysisPipeline pipelineThread = task.start(this, initialBuckets, searchEngines);
 						//qcPipelineThreads.add(pipelineThread);
 						numRunningThreads++;
 						if (config.getVerbosityLevel() > 1) {
@@ -230,6 +349,28 @@ class AnalysisTaskManager {
 				System.exit(-1);
 			}
 		}
+		synchronized (this) {
+			hashMapPool.clear();
+			pooledBuckets = 0;
+		}
+		if (onlineClassifier != null) {
+			onlineClassifier.shutdown();
+			if (config.getVerbosityLevel() > 1) {
+				System.err.println("Sequences classified during parsing: " + onlineClassifier.getClassifiedCount() + 
+						" (" + onlineClassifier.getDroppedCount() + " left for after parsing)");
+			}
+		}
+		if ((classificationCache != null) && (config.getVerbosityLevel() > 1)) {
+			System.err.println("Classification cache hit rate: " + 
+					String.format(Locale.US, "%.1f%%", classificationCache.getHitRate() * 100));
+		}
+		if (persistentClassificationCache != null) {
+			if (config.getVerbosityLevel() > 1) {
+				System.err.println("Classification cache file entries: " + persistentClassificationCache.getUsedSlots());
+			}
+			persistentClassificationCache.close();
+		}
+		classificationPool.shutdown();
 		return pipelineResults;	
 	}	
 
@@ -21,61 +21,76 @@ package se.scilifelab.mirtrace;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class CladeFamilyRecord implements Comparable<CladeFamilyRecord> {
 	
+	static final int NO_FAMILY_ID = -1;
+	
 	String seq;
-	Integer cladeId;
-	Integer familyId;
+	int cladeId;
+	int familyId;
 	List<String> miRBaseIds;
 	int count;
-	Pattern RE_MIRBASE_FAMILY_ID = Pattern.compile("^[^-]+-miR-?([0-9]+).*?$");
 	
-	CladeFamilyRecord(String seq, Integer clade) {
+	CladeFamilyRecord(String seq, int clade) {
 		miRBaseIds = new ArrayList<String>();
 		this.seq = seq;
 		this.cladeId = clade;
-		this.familyId = null;
+		this.familyId = NO_FAMILY_ID;
 	}
 	
-	void putmiRBaseId(String miRBaseId) {
+	/* 'familyId' is the family number of 'miRBaseId', parsed at database 
+	 * load (see CladeSearchEngine), or NO_FAMILY_ID. */
+	void putmiRBaseId(String miRBaseId, int familyId) {
 		if (!miRBaseIds.contains(miRBaseId)) {
-			Matcher m = RE_MIRBASE_FAMILY_ID.matcher(miRBaseId);
-			if (!m.matches()) {
+			if (familyId == NO_FAMILY_ID) {
 				System.err.println("WARNING: unable to extract family id from miRBase id: " + miRBaseId);
 			} else {
-				Integer newFamilyId = new Integer(m.group(1));
-				if ((familyId != null) && (newFamilyId.intValue() != familyId.intValue())) {
-					System.err.println("ERROR: inconsistent clade family id detected! This shouldn't happen.");
-					System.err.println("       " + familyId.toString() + ", " + newFamilyId.toString());
-				} else {
-					familyId = newFamilyId;
-				}
+				putFamilyId(familyId);
 			}
 			miRBaseIds.add(miRBaseId);
 		}
 	}
 	
+	/* Adds the miRBase ids of a record of the same sequence. */
+	void putmiRBaseIds(CladeFamilyRecord other) {
+		for (String miRBaseId : other.miRBaseIds) {
+			if (!miRBaseIds.contains(miRBaseId)) {
+				miRBaseIds.add(miRBaseId);
+			}
+		}
+		if (other.familyId != NO_FAMILY_ID) {
+			putFamilyId(other.familyId);
+		}
+	}
+	
+	private void putFamilyId(int newFamilyId) {
+		if ((familyId != NO_FAMILY_ID) && (newFamilyId != familyId)) {
+			System.err.println("ERROR: inconsistent clade family id detected! This shouldn't happen.");
+			System.err.println("       " + familyId + ", " + newFamilyId);
+		} else {
+			familyId = newFamilyId;
+		}
+	}
+	
 	void increaseCount(int amount) {
 		count += amount;
 	}
 
 	@Override
 	public int compareTo(CladeFamilyRecord o) {
-		if (o.cladeId.compareTo(cladeId) == 0) {
+		if (o.cladeId == cladeId) {
 			return seq.compareTo(o.seq);
 		} else {
-			return cladeId.compareTo(o.cladeId);
+			return cladeId < o.cladeId ? -1 : 1;
 		}
 	}
 
 	public String getFamilyId() {
-		if (familyId == null) { 
+		if (familyId == NO_FAMILY_ID) { 
 			return "";
 		} else {
-			return familyId.toString();
+			return Integer.toString(familyId);
 		}
 	}
 
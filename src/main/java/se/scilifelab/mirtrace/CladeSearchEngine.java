@@ -19,100 +19,194 @@
 *******************************************************************************/
 package se.scilifelab.mirtrace;
 
-import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.google.common.hash.Hasher;
+
 class CladeSearchEngine {
 	
 	List<DNASequenceDatabase> databases = new ArrayList<DNASequenceDatabase>();
+	/* Clade database entries are also addressed by a global refSeq id: 
+	 * the id within the clade database plus the offset of that clade. */
+	int[] globalRefSeqIdOffsets = new int[Config.CLADES.length + 1];
+	/* The reference sequence ids are parsed once, at load time, into the 
+	 * following tables, so that hits are handled by array lookups. 
+	 * 
+	 * Search result of each global refSeq id (results are shared). */
+	CladeSearchResult[] globalSearchResults;
+	/* Index into 'miRBaseIds' of each global refSeq id, or NO_MIRBASE_ID if 
+	 * the refSeq id has no valid miRBase id. */
+	int[] globalMiRBaseIds;
+	/* Distinct miRBase ids (e.g. "hsa-miR-21"), and the family number of 
+	 * each (see RE_MIRBASE_FAMILY_ID), or CladeFamilyRecord.NO_FAMILY_ID. */
+	String[] miRBaseIds;
+	int[] miRBaseFamilyIds;
+	/* Distinct family ids of each clade, by family index. */
+	String[][] cladeFamilyIds = new String[Config.CLADES.length][];
+	PackedSeqIndex index;
 	Config config;
 	Queue<String> warnings;
-	private Pattern RE_CLADE_SEQ_ENTRY = Pattern.compile("^seq_([^\\+]+)\\+clade_([^\\+]+)\\+(.+)$");
+	static final int NO_MIRBASE_ID = -1;
+	private static final Pattern RE_CLADE_SEQ_ENTRY = Pattern.compile("^seq_([^\\+]+)\\+clade_([^\\+]+)\\+(.+)$");
+	private static final Pattern RE_MIRBASE_ID = Pattern.compile("^([^-]+-miR-?[^-]+).*?$");
+	private static final Pattern RE_MIRBASE_FAMILY_ID = Pattern.compile("^[^-]+-miR-?([0-9]+).*?$");
 	
 	class CladeSearchResult {
 		
 		int cladeFound;
 		String familyId;
+		int familyIndex; /* Index into cladeFamilyIds[cladeFound]. */
 		String cladeString;
+		int globalRefSeqId;
 		
-		public CladeSearchResult(int cladeFound, String familyId, String cladeString) {
+		public CladeSearchResult(int cladeFound, String familyId, int familyIndex, String cladeString, int globalRefSeqId) {
 			this.cladeFound = cladeFound;
 			this.familyId = familyId;
+			this.familyIndex = familyIndex;
 			this.cladeString = cladeString;
+			this.globalRefSeqId = globalRefSeqId;
 		}
 	}
 	
-	public CladeSearchEngine(Config config, Queue<String> warnings) throws DBNotFoundException {
+	/* The databases are loaded in 'loaderPool'. */
+	public CladeSearchEngine(Config config, Queue<String> warnings, ExecutorService loaderPool) throws DBNotFoundException {
 		this.config = config;
 		this.warnings = warnings;
+		List<Future<DNASequenceDatabase>> loads = new ArrayList<Future<DNASequenceDatabase>>();
 		for (int i=0; i < Config.CLADES.length; i++) {
 			String clade = Config.CLADES[i];
 			String species = "meta_species_any";
 			String dbFilename = "clade." + species + "." + clade + ".db.gz";
-			InputStream dbInputStream = DatabaseLoader.loadDatabase(dbFilename, config, false, warnings, null);
-			
-			databases.add(new DNASequenceDatabase(dbInputStream));
+			loads.add(DatabaseLoader.submit(loaderPool, dbFilename, config, warnings, null));
+		}
+		for (int i=0; i < Config.CLADES.length; i++) {
+			databases.add(SearchEngines.await(loads.get(i)));
+			globalRefSeqIdOffsets[i + 1] = globalRefSeqIdOffsets[i] + databases.get(i).getRefSeqCount();
 		}
+		parseRefSeqIds();
+		index = PackedSeqIndex.ofWholeSequences(databases.toArray(new DNASequenceDatabase[databases.size()]), 
+				globalRefSeqIdOffsets, Config.CLADE_DB_SEQ_LEN_CUTOFF);
 	}
 	
-	CladeSearchResult search(byte[] seq, int seqLen) {
-		/* We're using exact matching on databases that are supposed to be 
-		 * completely non-overlapping. */
-		CladeSearchResult sr = null;
-		if (seqLen < Config.CLADE_DB_SEQ_LEN_CUTOFF) {
-			return null;
-		}
-		int querySeqLen = Config.CLADE_DB_SEQ_LEN_CUTOFF;
-		for (int i=0; i < Config.CLADES.length; i++) {
-			DNASequenceDatabase.SearchResult res = databases.get(i).search(seq, querySeqLen, 0, true, true);
-			if (res.matches) {
-				String seqId = databases.get(i).getRefSeqId(res.refSeqId);
-				//String familyId = seqId.replaceFirst("^seq_.*\\+clade_", "");
-				
-				Matcher m = RE_CLADE_SEQ_ENTRY.matcher(seqId);
+	private void parseRefSeqIds() {
+		int globalRefSeqCount = globalRefSeqIdOffsets[Config.CLADES.length];
+		globalSearchResults = new CladeSearchResult[globalRefSeqCount];
+		globalMiRBaseIds = new int[globalRefSeqCount];
+		Map<String,Integer> miRBaseIdIndexes = new HashMap<String,Integer>();
+		List<String> miRBaseIdList = new ArrayList<String>();
+		IntList miRBaseFamilyIdList = new IntList();
+		for (int clade=0; clade < Config.CLADES.length; clade++) {
+			/* Family ids are interned and numbered per clade. */
+			Map<String,Integer> familyIndexes = new HashMap<String,Integer>();
+			List<String> familyIds = new ArrayList<String>();
+			for (int j=0; j < databases.get(clade).getRefSeqCount(); j++) {
+				int globalRefSeqId = globalRefSeqIdOffsets[clade] + j;
+				Matcher m = RE_CLADE_SEQ_ENTRY.matcher(databases.get(clade).getRefSeqId(j));
 				if (!m.matches()) {
 					throw new RuntimeException("Internal error in clade database: invalid seq record id.");
 				}
-				String familyId = m.group(2);
+				Integer familyIndex = familyIndexes.get(m.group(2));
+				if (familyIndex == null) {
+					familyIndex = familyIds.size();
+					familyIndexes.put(m.group(2), familyIndex);
+					familyIds.add(m.group(2));
+				}
+				globalSearchResults[globalRefSeqId] = new CladeSearchResult(clade, familyIds.get(familyIndex), 
+						familyIndex, Config.CLADES[clade], globalRefSeqId);
 				
-				sr = new CladeSearchResult(i, familyId, Config.CLADES[i]);
-				return sr;
+				Matcher miRBaseMatcher = RE_MIRBASE_ID.matcher(m.group(3));
+				if (!miRBaseMatcher.matches()) {
+					/* Only an error if the entry is ever hit, see getMiRBaseId(). */
+					globalMiRBaseIds[globalRefSeqId] = NO_MIRBASE_ID;
+					continue;
+				}
+				String miRBaseId = miRBaseMatcher.group(1);
+				Integer index = miRBaseIdIndexes.get(miRBaseId);
+				if (index == null) {
+					index = miRBaseIdList.size();
+					miRBaseIdIndexes.put(miRBaseId, index);
+					miRBaseIdList.add(miRBaseId);
+					miRBaseFamilyIdList.add(parseMiRBaseFamilyId(miRBaseId));
+				}
+				globalMiRBaseIds[globalRefSeqId] = index;
+			}
+			cladeFamilyIds[clade] = familyIds.toArray(new String[familyIds.size()]);
+		}
+		miRBaseIds = miRBaseIdList.toArray(new String[miRBaseIdList.size()]);
+		miRBaseFamilyIds = miRBaseFamilyIdList.toArray();
+	}
+	
+	private static int parseMiRBaseFamilyId(String miRBaseId) {
+		Matcher m = RE_MIRBASE_FAMILY_ID.matcher(miRBaseId);
+		if (m.matches()) {
+			try {
+				return Integer.parseInt(m.group(1));
+			} catch (NumberFormatException e) {
+				/* Handled like an id without a family number. */
 			}
 		}
-		return null;
+		return CladeFamilyRecord.NO_FAMILY_ID;
+	}
+	
+	CladeSearchResult getSearchResult(int globalRefSeqId) {
+		return globalSearchResults[globalRefSeqId];
+	}
+	
+	/* Index into 'miRBaseIds' of the miRBase id of a clade database entry. */
+	int getMiRBaseId(int globalRefSeqId) {
+		int miRBaseId = globalMiRBaseIds[globalRefSeqId];
+		if (miRBaseId == NO_MIRBASE_ID) {
+			throw new RuntimeException("Internal error in clade database: invalid seq record id.");
+		}
+		return miRBaseId;
 	}
 	
-	List<String> findAllMiRBaseEntries(byte[] seq, int seqLen) {
+	/* 'packedSeq' is 2-bit packed like the sequences of DNASequenceHashMap. */
+	CladeSearchResult search(long[] packedSeq, int seqLen) {
 		/* We're using exact matching on databases that are supposed to be 
 		 * completely non-overlapping. */
-		List<String> found = new ArrayList<String>();
 		if (seqLen < Config.CLADE_DB_SEQ_LEN_CUTOFF) {
-			return found;
+			return null;
 		}
-		int querySeqLen = Config.CLADE_DB_SEQ_LEN_CUTOFF;
-		for (int i=0; i < Config.CLADES.length; i++) {
-			DNASequenceDatabase.SearchResult lastMatch = DNASequenceDatabase.NO_MATCH_RESULT;
-			while (true) {
-				lastMatch = databases.get(i).search(seq, querySeqLen, 0, true, true, lastMatch.refSeqId);
-				if (!lastMatch.matches) {
-					break;
-				} else {
-					String seqId = databases.get(i).getRefSeqId(lastMatch.refSeqId);
-					Matcher m = RE_CLADE_SEQ_ENTRY.matcher(seqId);
-					if (!m.matches()) {
-						throw new RuntimeException("Internal error in clade database: invalid seq record id.");
-					}
-					String miRBaseEntryId = m.group(3);
-					found.add(miRBaseEntryId);
-				}
-			}
+		int slot = index.lookup(PackedSeqIndex.prefixKey(packedSeq, Config.CLADE_DB_SEQ_LEN_CUTOFF));
+		if (slot == PackedSeqIndex.NOT_FOUND) {
+			return null;
+		}
+		/* The first id is the first match in clade order. */
+		return getSearchResult(index.getId(slot, 0));
+	}
+	
+	/* Returns the global refSeq ids of all matching entries. */
+	int[] findAllMiRBaseEntries(long[] packedSeq, int seqLen) {
+		/* We're using exact matching on databases that are supposed to be 
+		 * completely non-overlapping. */
+		if (seqLen < Config.CLADE_DB_SEQ_LEN_CUTOFF) {
+			return SequenceClassification.NO_REF_SEQS;
+		}
+		int slot = index.lookup(PackedSeqIndex.prefixKey(packedSeq, Config.CLADE_DB_SEQ_LEN_CUTOFF));
+		if (slot == PackedSeqIndex.NOT_FOUND) {
+			return SequenceClassification.NO_REF_SEQS;
+		}
+		int[] result = new int[index.getIdCount(slot)];
+		for (int i=0; i < result.length; i++) {
+			result[i] = index.getId(slot, i);
+		}
+		return result;
+	}
+
+	/* Feeds the checksums of all loaded databases, in clade order, to 'hasher'. */
+	void putDatabaseChecksums(Hasher hasher) {
+		for (DNASequenceDatabase db : databases) {
+			hasher.putBytes(db.getChecksum().asBytes());
 		}
-		return found;
 	}
 
 	public int[] getRefSeqCounts() {
@@ -126,18 +220,7 @@ class CladeSearchEngine {
 	public int[] getRefFamilyCounts() {
 		int[] refFamilyCounts = new int[Config.CLADES.length];
 		for (int i=0; i < Config.CLADES.length; i++) {
-			HashSet<String> foundFamilyIds = new HashSet<String>();
-			for (int j=0; j < databases.get(i).getRefSeqCount(); j++) {
-				String seqId = databases.get(i).getRefSeqId(j);
-				//String familyId = seqId.replaceFirst("^seq_.*\\+clade_", "");
-				Matcher m = RE_CLADE_SEQ_ENTRY.matcher(seqId);
-				if (!m.matches()) {
-					throw new RuntimeException("Internal error in clade database: invalid seq record id.");
-				}
-				String familyId = m.group(2);
-				foundFamilyIds.add(familyId);
-			}
-			refFamilyCounts[i] = foundFamilyIds.size();
+			refFamilyCounts[i] = cladeFamilyIds[i].length;
 		}
 		return refFamilyCounts;
 	}
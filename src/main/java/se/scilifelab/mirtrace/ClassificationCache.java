@@ -0,0 +1,230 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent, size-bounded cache of {@link SequenceClassification} results, 
+ * shared by all analysis pipelines of a run.
+ * 
+ * Sequences are keyed by their 2-bit packed representation (same layout as 
+ * in {@link DNASequenceHashMap}). The cache is split into independently 
+ * locked segments, each an open-addressing table. When a segment is full,
+ * the least frequently used part of it is evicted and the remaining 
+ * frequencies are halved so that old popularity eventually fades.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class ClassificationCache {
+	
+	static final int KEY_WORDS = DNASequenceHashMap.BUCKET_SIZE;
+	static final int SEGMENT_COUNT = 64; // Must be a power of 2
+	static final double EVICTION_FRACTION = 0.25;
+	
+	private final Segment[] segments = new Segment[SEGMENT_COUNT];
+	
+	/* Statistics, only used for debug output. */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	ClassificationCache(int capacity) {
+		int segmentCapacity = (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+		if (segmentCapacity < 1) {
+			segmentCapacity = 1;
+		}
+		for (int i=0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment(segmentCapacity);
+		}
+	}
+	
+	static int hash(long[] key, int seqLen) {
+		long h = seqLen;
+		for (int i = 0; i < KEY_WORDS; i++) {
+			h = (h ^ key[i]) * 0x9E3779B97F4A7C15L;
+		}
+		/* Final avalanche (MurmurHash3 fmix64). */
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+	
+	SequenceClassification get(long[] key, int seqLen) {
+		int h = hash(key, seqLen);
+		SequenceClassification c = segments[h & (SEGMENT_COUNT - 1)].get(key, seqLen, h);
+		if (c == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return c;
+	}
+	
+	void put(long[] key, int seqLen, SequenceClassification classification) {
+		int h = hash(key, seqLen);
+		segments[h & (SEGMENT_COUNT - 1)].put(key, seqLen, h, classification);
+	}
+	
+	double getHitRate() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return total == 0 ? 0 : hitCount / (double) total;
+	}
+	
+	private static final class Segment {
+		
+		final int capacity;
+		int size = 0;
+		int mask;
+		long[] keys;
+		byte[] lengths; /* 0 marks an empty slot. */
+		int[] frequencies;
+		SequenceClassification[] values;
+		
+		Segment(int capacity) {
+			this.capacity = capacity;
+			/* Keep the load factor at or below 0.5. */
+			int slots = Integer.highestOneBit(capacity) << 2;
+			this.mask = slots - 1;
+			this.keys = new long[slots * KEY_WORDS];
+			this.lengths = new byte[slots];
+			this.frequencies = new int[slots];
+			this.values = new SequenceClassification[slots];
+		}
+		
+		/* Returns the slot holding the key, or the empty slot where it belongs. */
+		private int findSlot(long[] key, int seqLen, int h) {
+			/* The low bits were used to select the segment. */
+			int slot = (h >>> 6) & mask;
+			while (lengths[slot] != 0) {
+				if (lengths[slot] == seqLen) {
+					boolean identical = true;
+					int s = slot * KEY_WORDS;
+					for (int i = 0; i < KEY_WORDS; i++) {
+						if (keys[s + i] != key[i]) {
+							identical = false;
+							break;
+						}
+					}
+					if (identical) {
+						return slot;
+					}
+				}
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		synchronized SequenceClassification get(long[] key, int seqLen, int h) {
+			int slot = findSlot(key, seqLen, h);
+			if (lengths[slot] == 0) {
+				return null;
+			}
+			if (frequencies[slot] < Integer.MAX_VALUE) {
+				frequencies[slot]++;
+			}
+			return values[slot];
+		}
+		
+		synchronized void put(long[] key, int seqLen, int h, SequenceClassification classification) {
+			int slot = findSlot(key, seqLen, h);
+			if (lengths[slot] != 0) {
+				values[slot] = classification;
+				return;
+			}
+			if (size >= capacity) {
+				evict();
+				slot = findSlot(key, seqLen, h);
+			}
+			System.arraycopy(key, 0, keys, slot * KEY_WORDS, KEY_WORDS);
+			lengths[slot] = (byte) seqLen;
+			frequencies[slot] = 1;
+			values[slot] = classification;
+			size++;
+		}
+		
+		/* Drops the least frequently used entries and halves the frequencies
+		 * of the rest. The table is rebuilt, so no tombstones are needed. */
+		private void evict() {
+			int[] sortedFrequencies = new int[size];
+			int n = 0;
+			for (int slot = 0; slot < lengths.length; slot++) {
+				if (lengths[slot] != 0) {
+					sortedFrequencies[n++] = frequencies[slot];
+				}
+			}
+			Arrays.sort(sortedFrequencies);
+			int toEvict = Math.max(1, (int) (size * EVICTION_FRACTION));
+			int threshold = sortedFrequencies[toEvict - 1];
+			/* Entries below the threshold are always evicted, entries at the 
+			 * threshold only until 'toEvict' entries are gone. */
+			int evictAtThreshold = toEvict - lowerBound(sortedFrequencies, threshold);
+			
+			long[] oldKeys = keys;
+			byte[] oldLengths = lengths;
+			int[] oldFrequencies = frequencies;
+			SequenceClassification[] oldValues = values;
+			keys = new long[oldKeys.length];
+			lengths = new byte[oldLengths.length];
+			frequencies = new int[oldFrequencies.length];
+			values = new SequenceClassification[oldValues.length];
+			size = 0;
+			long[] key = new long[KEY_WORDS];
+			for (int slot = 0; slot < oldLengths.length; slot++) {
+				if (oldLengths[slot] == 0) {
+					continue;
+				}
+				int f = oldFrequencies[slot];
+				if (f < threshold) {
+					continue;
+				}
+				if (f == threshold && evictAtThreshold > 0) {
+					evictAtThreshold--;
+					continue;
+				}
+				System.arraycopy(oldKeys, slot * KEY_WORDS, key, 0, KEY_WORDS);
+				int newSlot = findSlot(key, oldLengths[slot], hash(key, oldLengths[slot]));
+				System.arraycopy(key, 0, keys, newSlot * KEY_WORDS, KEY_WORDS);
+				lengths[newSlot] = oldLengths[slot];
+				frequencies[newSlot] = Math.max(1, f >>> 1);
+				values[newSlot] = oldValues[slot];
+				size++;
+			}
+		}
+		
+		/* Index of the first element >= value in a sorted array. */
+		private static int lowerBound(int[] a, int value) {
+			int lo = 0;
+			int hi = a.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (a[mid] < value) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+}
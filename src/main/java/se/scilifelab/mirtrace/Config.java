@@ -51,6 +51,8 @@ class Config {
 	static final int RNA_TYPE_ART_RNA = 3;
 	static final int RNA_TYPE_UNKNOWN = 4;
 	static final int NUMBER_OF_RNA_CLASSES = 5;
+	/* Names used in FASTA output, indexed by the RNA type constants above. */
+	static final String[] RNA_TYPE_NAMES = {"mirna", "rrna", "trna", "artifacts", "unknown"};
 	
 	/* QC pipeline constants. */
 	static final int MIN_ALLOWED_SEQ_LEN = 18;
@@ -124,6 +126,9 @@ class Config {
 			HM_BYTES_FOR_SORTED_INDEX +
 			(4*HM_LOOKUP_TABLE_EXPANSION_FACTOR)
 	);
+	/* Hash maps of finished tasks are kept for reuse. A smaller pooled map 
+	 * is handed out if its capacity is at least this fraction of the requested one. */
+	static final double HM_POOL_MIN_CAPACITY_FRACTION = 0.75;
 	static final int THREAD_MANAGER_LOOP_ITERATION_DELAY = 50; /* In ms. */
 	static final int MAX_INPUT_FILES = 100000; /* Should be set very high. */
 	
@@ -138,6 +143,39 @@ class Config {
 	
 	static final int RECOMMENDED_INIT_HM_CAPACITY_PER_MB_OF_FQ_INPUT = 700;
 	static final int ESTIMATED_FASTQ_GZIP_COMPRESSION_FACTOR = 8;
+	
+	/* Classification results can be cached across samples. The cache is 
+	 * disabled by default, as its memory is taken from the sequence hash 
+	 * maps. The per-entry size is a rough estimate of the cache slot plus the 
+	 * cached result object. */
+	static final int DEFAULT_CLASSIFICATION_CACHE_SIZE = 0;
+	static final int CLASSIFICATION_CACHE_BYTES_PER_ENTRY = 200;
+	/* Number of sequences a persistent cache file holds at least (about 85 
+	 * bytes each on disk). A file that is half full grows on the next run. */
+	static final int DEFAULT_CLASSIFICATION_CACHE_FILE_SIZE = 1 << 20;
+	/* The miRNA database gets a mismatch neighbourhood index (see 
+	 * MismatchNeighbourhoodIndex) if its reference sequences are at most 
+	 * this many bases in total. */
+	static final int MISMATCH_INDEX_MAX_REF_SEQ_BASES = 1 << 18;
+	/* Reads left unclassified by the RNA type databases are counted as 
+	 * artifacts if they match the --contaminant-db index this well. */
+	static final int CONTAMINANT_DB_MAX_MISMATCHES = 1;
+	/* Number of unique sequences classified together, so that the database
+	 * lookups of one sequence overlap with those of the others. */
+	static final int SEARCH_BATCH_SIZE = 64;
+	/* Number of unique sequences classified by one worker at a time when a 
+	 * sample is classified in parallel. A multiple of SEARCH_BATCH_SIZE. */
+	static final int CLASSIFICATION_RANGE_SIZE = 16 * SEARCH_BATCH_SIZE;
+	/* Number of new sequences waiting for online classification, see 
+	 * OnlineClassifier. Large enough to hold the new sequences of the first 
+	 * samples while the databases are still loading. A power of 2. */
+	static final int ONLINE_CLASSIFICATION_QUEUE_SIZE = 1 << 18;
+	/* Packed sequence, length, sequence number and table reference. */
+	static final int ONLINE_CLASSIFICATION_BYTES_PER_QUEUE_SLOT = HM_ARRAY_BYTES_PER_BUCKET + 1 + 4 + 8;
+	/* Memory set aside per hash map bucket for its online classification 
+	 * (see SequenceClassificationTable): a rough estimate of the table slot 
+	 * plus the result object. Results without hits are shared. */
+	static final int ONLINE_CLASSIFICATION_BYTES_PER_BUCKET = 24;
 		
 	/* Filename related constants. */
 	private final String[] SUFFIX_TRIM_REGEXS = {"[.]fq$", "[.]fastq$", "[.]fq[.].*$", "[.]fastq[.].*$"};
@@ -166,6 +204,12 @@ class Config {
 	private String MIRTRACEInvocationSyntax = "java -Xms<mem in MB>M -Xmx<mem in MB>M -jar <MIRTRACE JAR>";
 	private boolean wrapperScriptUsed = false;
 	private boolean mapToAllSpeciesRnatypeDatabases = false;
+	private int classificationCacheSize = DEFAULT_CLASSIFICATION_CACHE_SIZE;
+	private File classificationCacheFile = null;
+	private int classificationCacheFileSize = DEFAULT_CLASSIFICATION_CACHE_FILE_SIZE;
+	private boolean onlineClassification = false;
+	private File dbCacheDir = null;
+	private File contaminantDB = null;
 
 	/* globalMemoryReserve specifies the fixed amount of Java heap memory
 	 * that can't be used by the sequence hash maps.
@@ -324,6 +368,14 @@ class Config {
 			case "trace":
 				mirtraceMode = "trace";
 				break;
+			case "build-db":
+				buildDatabase(args, modeParamIndex);
+				System.exit(0);
+				break;
+			case "build-contaminant-db":
+				buildContaminantDB(args, modeParamIndex);
+				System.exit(0);
+				break;
 			default:
 				printUsage(System.err);
 				fail("Unknown mode: " + args[modeParamIndex]);
@@ -353,6 +405,7 @@ class Config {
 					currentArgName.equals("uncollapse-fasta") ||
 					currentArgName.equals("sort-fasta") ||
 					currentArgName.equals("enable-pipes") ||
+					currentArgName.equals("online-classification") ||
 					currentArgName.equals("autodetect-adapter")) {
 				/* Flag-type argument is OK. */
 			} else {
@@ -470,6 +523,47 @@ class Config {
 						fail("Invalid per-sample-memory-reserve.");
 					}
 					break;
+				case "classification-cache-size":
+					try {
+						classificationCacheSize = Integer.parseInt(currentArgValue);
+						if (classificationCacheSize < 0) {
+							printUsage(System.err);
+							fail("Negative classification-cache-size.");
+						}
+					} catch (NumberFormatException e) {
+						printUsage(System.err);
+						fail("Invalid classification-cache-size.");
+					}
+					break;
+				case "classification-cache-file":
+					classificationCacheFile = new File(currentArgValue);
+					break;
+				case "classification-cache-file-size":
+					try {
+						classificationCacheFileSize = Integer.parseInt(currentArgValue);
+						if ((classificationCacheFileSize < 0) || (classificationCacheFileSize > 
+								PersistentClassificationCache.MAX_SLOT_COUNT * PersistentClassificationCache.MAX_LOAD_FACTOR)) {
+							printUsage(System.err);
+							fail("classification-cache-file-size out of range.");
+						}
+					} catch (NumberFormatException e) {
+						printUsage(System.err);
+						fail("Invalid classification-cache-file-size.");
+					}
+					break;
+				case "online-classification":
+					onlineClassification = true;
+					break;
+				case "db-cache-dir":
+					dbCacheDir = new File(currentArgValue);
+					break;
+				case "contaminant-db":
+					contaminantDB = new File(currentArgValue);
+					if (!contaminantDB.isFile()) {
+						printUsage(System.err);
+						fail("Contaminant database not found: " + currentArgValue);
+					}
+					break;
 				case "map-to-all-species-rnatype-databases":
 					mapToAllSpeciesRnatypeDatabases = true;
 					break;
@@ -657,6 +751,13 @@ class Config {
 		o.println("The first argument must specify what mode miRTrace should operate in. Available modes:");
 		o.println("    trace                  miRNA trace mode. Produces a clade report. --species is ignored.");
 		o.println("    qc                     Quality control mode (full set of reports). --species must be given.");
+		o.println("    build-db               Build a custom database. Arguments: [--rnatype] [--index-dir <dir>]");
+		o.println("                           [-t <threads>] <FASTA file> <database file>");
+		o.println("                           --rnatype: add reverse complements, as required for RNA type");
+		o.println("                           databases. Database files must be named as in --custom-db-folder.");
+		o.println("                           The index file (see --db-cache-dir) is written to --index-dir.");
+		o.println("                           [DEFAULT: the directory of the database file]");
+		o.println("    build-contaminant-db   Build a --contaminant-db index. Arguments: <FASTA file> <index file>");
 		o.println("");
 		o.println("ARGUMENT REQUIRED IN QC MODE:");
 		o.println("    -s, --species          Species (miRBase encoding). EXAMPLE: \"hsa\" for Homo sapiens.");
@@ -713,9 +814,40 @@ class Config {
 		o.println("                           Increase only if OutOfMemoryErrors are occurring.");
 		o.println("                           Decrease only if available system memory is very low.");
 		o.println("                           [Current value: " + (globalMemoryReserve / (1024*1024)) + " MB]");
+		o.println("    --classification-cache-size");
+		o.println("                           Number of classified sequences to remember across");
+		o.println("                           samples (about " + CLASSIFICATION_CACHE_BYTES_PER_ENTRY + " bytes each, taken from the");
+		o.println("                           memory of the sequence hash maps). Pays off when the");
+		o.println("                           samples share many sequences. 0 disables the cache.");
+		o.println("                           [DEFAULT: " + DEFAULT_CLASSIFICATION_CACHE_SIZE + "]");
+		o.println("    --classification-cache-file");
+		o.println("                           File used to keep classified sequences between runs.");
+		o.println("                           It is reset automatically when the databases change.");
+		o.println("                           [DEFAULT: none]");
+		o.println("    --classification-cache-file-size");
+		o.println("                           Number of classified sequences the cache file holds");
+		o.println("                           at least. A file that is more than half full is grown");
+		o.println("                           to twice the size on the next run.");
+		o.println("                           [DEFAULT: " + DEFAULT_CLASSIFICATION_CACHE_FILE_SIZE + "]");
+		o.println("    --online-classification");
+		o.println("                           Classify new sequences while the samples are still");
+		o.println("                           being parsed. Runs on the --num-threads classification");
+		o.println("                           threads, next to the parsing threads. Needs about");
+		o.println("                           " + ONLINE_CLASSIFICATION_BYTES_PER_BUCKET + " bytes of memory per unique sequence.");
+		o.println("    --db-cache-dir         Directory for pre-parsed (memory-mapped) copies of the");
+		o.println("                           reference databases, created on first use.");
+		o.println("                           Speeds up startup. [DEFAULT: none]");
 		o.println("");
 		o.println("OPTIONAL ARGUMENTS [CUSTOM DATABASES]:");
 		o.println("    --custom-db-folder     Folder containing user-generated reference databases.");
+		o.println("                           RNA type databases named *.overlay.db.gz (e.g.");
+		o.println("                           rnatype.hsa.mirna.overlay.db.gz) are searched in");
+		o.println("                           addition to the bundled database instead of replacing it.");
+		o.println("    --contaminant-db       Index of contaminant sequences (see mode build-contaminant-db).");
+		o.println("                           QC mode only. Reads of unknown RNA type matching a");
+		o.println("                           contaminant with at most " + CONTAMINANT_DB_MAX_MISMATCHES + " mismatch are counted as");
+		o.println("                           artifacts. Their number is reported separately in a");
+		o.println("                           warning and as statsRNATypeContaminantReads in the JSON.");
 		o.println("");
 		o.println("HELP");
 		o.println("    --list-species         List all species that miRTrace has reference databases for.");
@@ -770,6 +902,11 @@ class Config {
 		return analysisTasks.size();
 	}
 	
+	/* Unlike getMaxNumThreads(), not limited by the number of samples. */
+	int getNumThreads() {
+		return numThreads;
+	}
+	
 	int getMaxNumThreads() {
 		if (numThreads > analysisTasks.size()) {
 			return analysisTasks.size();
@@ -818,6 +955,79 @@ class Config {
 		return enablePipes;
 	}
 	
+	void buildDatabase(String[] args, int modeParamIndex) {
+		boolean rnaTypeMode = false;
+		File indexDir = null;
+		List<String> files = new ArrayList<String>();
+		for (int i = modeParamIndex + 1; i < args.length; i++) {
+			if (!args[i].startsWith("-")) {
+				files.add(args[i]);
+				continue;
+			}
+			if (args[i].equals("--rnatype")) {
+				rnaTypeMode = true;
+				continue;
+			}
+			String currentArgName = args[i].startsWith("--") ? args[i].substring(2) : args[i].substring(1);
+			if (!currentArgName.equals("index-dir") && !currentArgName.equals("t") &&
+					!currentArgName.equals("num-threads")) {
+				printUsage(System.err);
+				fail("Unknown argument for mode build-db: " + args[i]);
+			}
+			if (i + 1 >= args.length) {
+				printUsage(System.err);
+				fail("Argument " + currentArgName + " value missing.");
+			}
+			String currentArgValue = args[++i];
+			switch (currentArgName) {
+				case "index-dir":
+					indexDir = new File(currentArgValue);
+					break;
+				case "t":
+				case "num-threads":
+					try {
+						numThreads = Integer.parseInt(currentArgValue);
+						if (numThreads < 1) {
+							printUsage(System.err);
+							fail("Invalid number of threads (must be >= 1).");
+						}
+					} catch (NumberFormatException e) {
+						printUsage(System.err);
+						fail("Invalid number of threads (not a valid number): " + currentArgValue);
+					}
+					break;
+			}
+		}
+		if (files.size() != 2) {
+			printUsage(System.err);
+			fail("Mode build-db takes a FASTA file and a database file name.");
+		}
+		File dbFile = new File(files.get(1)).getAbsoluteFile();
+		if (indexDir == null) {
+			indexDir = dbFile.getParentFile();
+		}
+		try {
+			DatabaseBuilder.buildDatabase(new File(files.get(0)), dbFile, rnaTypeMode, indexDir, numThreads);
+		} catch (IOException e) {
+			fail("Could not build database: " + e.getMessage());
+		}
+	}
+	
+	void buildContaminantDB(String[] args, int modeParamIndex) {
+		if (args.length != modeParamIndex + 3) {
+			printUsage(System.err);
+			fail("Mode build-contaminant-db takes a FASTA file and an index file name.");
+		}
+		File fastaFile = new File(args[modeParamIndex + 1]);
+		File indexFile = new File(args[modeParamIndex + 2]);
+		try {
+			FMIndex.build(fastaFile, indexFile);
+		} catch (IOException e) {
+			fail("Could not build contaminant database: " + e.getMessage());
+		}
+		System.err.println("Contaminant database written to " + indexFile.getAbsolutePath());
+	}
+	
 	void printCitationText(PrintStream ps) {
 		ps.println(CITATION_TEXT);
 	}
@@ -837,6 +1047,30 @@ class Config {
 	long getPerSampelMemoryReserve() {
 		return perSampleMemoryReserve;
 	}
+	
+	int getClassificationCacheSize() {
+		return classificationCacheSize;
+	}
+	
+	boolean onlineClassification() {
+		return onlineClassification;
+	}
+	
+	File getDBCacheDir() {
+		return dbCacheDir;
+	}
+	
+	File getContaminantDB() {
+		return contaminantDB;
+	}
+	
+	File getClassificationCacheFile() {
+		return classificationCacheFile;
+	}
+	
+	int getClassificationCacheFileSize() {
+		return classificationCacheFileSize;
+	}
 
 	String getSpeciesVerbosename() {
 		if (qcMode()) {
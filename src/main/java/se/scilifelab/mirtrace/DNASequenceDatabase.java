@@ -19,17 +19,32 @@
 *******************************************************************************/
 package se.scilifelab.mirtrace;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
 class DNASequenceDatabase {
 
 	final static int KMER_LEN = 9; /* Must match kmer len at database creation time. */ 
@@ -37,76 +52,270 @@ class DNASequenceDatabase {
 	final static byte ENDCHAR_BYTE = (byte) '$';
 	final static int NO_MATCH = -1;
 	
-	byte[] refSeq;
-	int[] posArray;
+	/* Version 4 of the database format: the parsed database, uncompressed, 
+	 * in native byte order and with all int and long sections aligned to 
+	 * their size, so that it can be memory mapped directly. Layout:
+	 * 
+	 *   0   long    magic number
+	 *   8   int     format version
+	 *   12  int     byte order marker (BYTE_ORDER_MARKER, in native order)
+	 *   16  int     refSeq length (bases)
+	 *   20  int     refSeqIds length (bytes)
+	 *   24  int     postings length (bytes)
+	 *   28  int     refSeqCount
+	 *   32  int     kmerLookup length (ints)
+	 *   64  int[]   kmerLookup
+	 *       int[]   refSeqEndcharLocations
+	 *       (padding to a multiple of 8 bytes)
+	 *       long[]  refSeq bases (see PackedRefSeq)
+	 *       long[]  refSeq endchar bitmap
+	 *       long[]  refSeq other character bitmap
+	 *       byte[]  postings (see PostingLists)
+	 *       byte[]  refSeqIds ('\n'-terminated)
+	 * 
+	 * Version 2 stored the refSeq as ASCII bytes, versions 2 and 3 stored
+	 * the kmer positions as a flat int[].
+	 */
+	final static long INDEX_FILE_MAGIC = 0x6d6952547244627aL;
+	final static int INDEX_FILE_FORMAT_VERSION = 4;
+	final static int INDEX_FILE_HEADER_SIZE = 64;
+	final static int BYTE_ORDER_MARKER = 0x01020304;
+	final static String INDEX_FILE_SUFFIX = ".v4.idx";
+	
+	/* The sequence data is held in buffers: either wrapped heap arrays 
+	 * (parsed from the .db.gz file) or views of a memory-mapped index file. 
+	 * Only absolute get() methods are used, so they are safe to share 
+	 * between threads. */
+	PackedRefSeq refSeq;
+	/* Reference offsets of each kmer, see PostingLists. */
+	ByteBuffer postings;
 	/* 'kmerLookup' data structure:
 	 * 
 	 * Index:		binary kmer
-	 * Value:		posArray offset. 
+	 * Value:		posting list offset (in 'postings'). 
 	 */
-	int[] kmerLookup;
+	IntBuffer kmerLookup;
+	/* One bit per binary kmer, set if the kmer occurs in the database: a
+	 * compact copy of 'kmerLookup' used to reject queries before any 
+	 * posting list is walked. */
+	long[] kmerPresence;
+	/* Exact index of all windows of 2 * KMER_LEN bases, used by the sliding
+	 * window searches. Only built on request (see buildWindowIndex), null 
+	 * otherwise. */
+	PackedSeqIndex windowIndex;
 	int refSeqCount = 0; /* Number of reference sequences. */
-	List<Integer> refSeqEndcharLocations;
+	IntBuffer refSeqEndcharLocations;
 	List<String> refSeqIds;
+	byte[] rawRefSeqIds; /* Only kept until the index file has been written. */
 	DataInputStream dis;
+	HashCode checksum; /* Content hash of the (compressed) database file. */
+	byte[] compressed; /* Only kept until the database has been parsed. */
+	/* For databases concatenated from several parts (see the 
+	 * DNASequenceDatabase(DNASequenceDatabase[]) constructor): the first
+	 * refSeq id and the first refSeq offset of each part, followed by the
+	 * totals. Null otherwise. */
+	int[] partRefSeqIdOffsets;
+	int[] partRefSeqOffsets;
 	
+	/* Mutable, so that searching doesn't allocate. */
 	static class SearchResult {
 		boolean matches = false;
 		int refSeqId = NO_MATCH;
-		int querySeqMatchStart = 0; /* 0-indexed (inclusive). */
-		int querySeqMatchEnd = 0; /* 0-indexed (inclusive). */
+		int querySeqMatchStart = -1; /* 0-indexed (inclusive). */
+		int querySeqMatchEnd = -1; /* 0-indexed (inclusive). */
 		
-		SearchResult(boolean matches, int refSeqId, int querySeqMatchStart, int querySeqMatchEnd) {
-			this.matches = matches;
+		void set(int refSeqId, int querySeqMatchStart, int querySeqMatchEnd) {
+			this.matches = true;
 			this.refSeqId = refSeqId;
 			this.querySeqMatchStart = querySeqMatchStart;
 			this.querySeqMatchEnd = querySeqMatchEnd; 
 		}
+		
+		void clear() {
+			this.matches = false;
+			this.refSeqId = NO_MATCH;
+			this.querySeqMatchStart = -1;
+			this.querySeqMatchEnd = -1; 
+		}
 	}
 	
-	static final SearchResult NO_MATCH_RESULT = new SearchResult(false, NO_MATCH, -1, -1);
+	/**
+	 * Per-thread scratch space for searching: the encoded kmers of the 
+	 * current query and the result of the last search. A query is encoded
+	 * once and can then be searched against any number of databases.
+	 */
+	static class SearchContext {
+		final SearchResult result = new SearchResult();
+		/* Reference sequence ids collected by searchAll(). */
+		final IntList hits = new IntList();
+		/* Binary kmer starting at each query position. */
+		final int[] queryKmers = new int[Config.READ_LENGTH_CUTOFF];
+		/* The query, packed like the reference sequences (see PackedRefSeq). */
+		final long[] queryPacked = new long[PackedRefSeq.baseWords(Config.READ_LENGTH_CUTOFF)];
+		final PostingLists.Cursor postings = new PostingLists.Cursor();
+		/* Posting list offsets of the seed kmers (query positions 0, KMER_LEN, 
+		 * 2 * KMER_LEN, ...) in 'seedDatabase', see lookupSeeds(). Null 
+		 * 'seedDatabase' means that the seeds of the current query have not 
+		 * been looked up. */
+		final int[] seedPostingsOffsets = new int[Config.READ_LENGTH_CUTOFF / KMER_LEN + 1];
+		DNASequenceDatabase seedDatabase;
+		
+		/* Takes the query 2-bit packed like the sequences of DNASequenceHashMap,
+		 * which is also how PackedRefSeq packs them. The kmers (first base in 
+		 * the most significant bits) are rolled in by shift and mask. */
+		void encodeQuery(long[] packedSeq, int seqLen) {
+			final int kmerMask = (1 << (2 * KMER_LEN)) - 1;
+			seedDatabase = null;
+			int words = PackedRefSeq.baseWords(seqLen);
+			System.arraycopy(packedSeq, 0, queryPacked, 0, words);
+			if ((seqLen & 31) != 0) {
+				queryPacked[words - 1] &= (1L << (2 * (seqLen & 31))) - 1;
+			}
+			int kmer = 0;
+			for (int i=0; i < seqLen; i++) {
+				kmer = ((kmer << 2) | (int) (queryPacked[i >>> 5] >>> ((i & 31) << 1)) & 3) & kmerMask;
+				if (i >= KMER_LEN - 1) {
+					queryKmers[i - (KMER_LEN - 1)] = kmer;
+				}
+			}
+		}
+
+	}
 	
 	public DNASequenceDatabase(String dbFilename) {
-		openDBFile(dbFilename);
+		try {
+			openDBFile(new FileInputStream(dbFilename));
+		} catch (FileNotFoundException e) {
+			System.err.print("ERROR: Could not open file: " + dbFilename);
+			e.printStackTrace();
+			failParse("DB file not found.");
+		}
 		parseDBFile();
+		rawRefSeqIds = null;
 	}
 	
 	public DNASequenceDatabase(InputStream is) {
 		openDBFile(is);
 		parseDBFile();
+		rawRefSeqIds = null;
+	}
+	
+	/**
+	 * Loads a database, using an index file of the current format version
+	 * (INDEX_FILE_FORMAT_VERSION) in 'indexCacheDir' if one exists for the 
+	 * exact content of the database. Otherwise the database is parsed and 
+	 * the index file is written for later runs.
+	 * 
+	 * @param dbName The database filename, used to name the index file.
+	 * @param indexCacheDir null disables the index cache.
+	 */
+	public DNASequenceDatabase(InputStream is, String dbName, File indexCacheDir) {
+		readCompressedDBFile(is);
+		if (indexCacheDir == null) {
+			openCompressedDBFile();
+			parseDBFile();
+			rawRefSeqIds = null;
+			return;
+		}
+		File indexFile = new File(indexCacheDir, dbName + "." + checksum.toString() + INDEX_FILE_SUFFIX);
+		if (indexFile.isFile() && mapIndexFile(indexFile)) {
+			compressed = null;
+			return;
+		}
+		openCompressedDBFile();
+		parseDBFile();
+		writeIndexFile(indexCacheDir, indexFile);
+	}
+	
+	/**
+	 * Concatenates the given databases into one, so that all of them can be 
+	 * searched in a single pass. The refSeq ids of part p are offset by 
+	 * partRefSeqIdOffsets[p], and the posting list of each kmer holds the
+	 * positions of all parts, in part order.
+	 */
+	public DNASequenceDatabase(DNASequenceDatabase[] parts) {
+		int numKmers = 1 << (2 * KMER_LEN);
+		partRefSeqIdOffsets = new int[parts.length + 1];
+		partRefSeqOffsets = new int[parts.length + 1];
+		for (int p=0; p < parts.length; p++) {
+			partRefSeqIdOffsets[p + 1] = partRefSeqIdOffsets[p] + parts[p].refSeqCount;
+			partRefSeqOffsets[p + 1] = partRefSeqOffsets[p] + parts[p].refSeq.length();
+		}
+		refSeqCount = partRefSeqIdOffsets[parts.length];
+		
+		byte[] rawRefSeq = new byte[partRefSeqOffsets[parts.length]];
+		int[] rawRefSeqEndcharLocations = new int[refSeqCount];
+		refSeqIds = new ArrayList<String>(refSeqCount);
+		for (int p=0; p < parts.length; p++) {
+			for (int k=0; k < parts[p].refSeq.length(); k++) {
+				rawRefSeq[partRefSeqOffsets[p] + k] = parts[p].refSeq.baseAt(k);
+			}
+			for (int j=0; j < parts[p].refSeqCount; j++) {
+				rawRefSeqEndcharLocations[partRefSeqIdOffsets[p] + j] = 
+						parts[p].refSeqEndcharLocations.get(j) + partRefSeqOffsets[p];
+			}
+			refSeqIds.addAll(parts[p].refSeqIds);
+		}
+		
+		int[] rawKmerLookup = new int[numKmers];
+		PostingLists.Builder builder = new PostingLists.Builder();
+		PostingLists.Cursor cursor = new PostingLists.Cursor();
+		int[] entries = new int[16];
+		for (int kmer=0; kmer < numKmers; kmer++) {
+			int count = 0;
+			for (int p=0; p < parts.length; p++) {
+				if (parts[p].refSeq.length() == 0) {
+					continue;
+				}
+				int postingsOffset = parts[p].kmerLookup.get(kmer);
+				if (postingsOffset == KMER_NON_EXISTENT) {
+					continue;
+				}
+				cursor.open(parts[p].postings, postingsOffset);
+				while (cursor.next()) {
+					if (count == entries.length) {
+						entries = Arrays.copyOf(entries, 2 * count);
+					}
+					entries[count++] = cursor.value + partRefSeqOffsets[p];
+				}
+			}
+			rawKmerLookup[kmer] = count == 0 ? KMER_NON_EXISTENT : builder.add(entries, count);
+		}
+		refSeq = PackedRefSeq.pack(rawRefSeq);
+		refSeqEndcharLocations = IntBuffer.wrap(rawRefSeqEndcharLocations);
+		kmerLookup = IntBuffer.wrap(rawKmerLookup);
+		kmerPresence = buildKmerPresence(kmerLookup);
+		postings = builder.build();
 	}
 	
 	private void failParse(String msg) {
 		throw new RuntimeException("Failed parsing RNA Type DB file: " + msg);
 	}
 
-	private void openDBFile(String dbFilename) {
-		int GZIP_BUF_SIZE = 8192;
+	private void openDBFile(InputStream is) {
+		readCompressedDBFile(is);
+		openCompressedDBFile();
+	}
+	
+	private void readCompressedDBFile(InputStream is) {
 		try {
-			dis = new DataInputStream(
-					new GZIPInputStream(
-						new FileInputStream(dbFilename), GZIP_BUF_SIZE));
-			// FOR READING NON-ZIPPED FILES. This might still be relevant later
-			// for user-supplied databases:
-			// dis = new DataInputStream(new FileInputStream(dbFilename));
-		}
-		catch (FileNotFoundException e) {
-			System.err.print("ERROR: Could not open file: " + dbFilename);
-			closeDBFile();
-			e.printStackTrace();
-			failParse("DB file not found.");
-		}
-		catch (IOException e) {
-			closeDBFile();
+			/* The databases are small, so the whole file is read into memory 
+			 * to compute its checksum before parsing it. */
+			compressed = ByteStreams.toByteArray(is);
+			is.close();
+			checksum = Hashing.murmur3_128().hashBytes(compressed);
+		} catch (IOException e) {
 			e.printStackTrace();
-			failParse("I/O error during parsing of DB file.");	
+			failParse("I/O error during reading of DB file.");	
 		}
 	}
-
-	private void openDBFile(InputStream is) {
+	
+	private void openCompressedDBFile() {
 		int GZIP_BUF_SIZE = 8192;
 		try {
-			dis = new DataInputStream(new GZIPInputStream(is, GZIP_BUF_SIZE));
+			dis = new DataInputStream(new GZIPInputStream(
+					new ByteArrayInputStream(compressed), GZIP_BUF_SIZE));
+			compressed = null;
 		}
 		catch (FileNotFoundException e) {
 			System.err.print("ERROR: Could not open file.");
@@ -165,12 +374,14 @@ class DNASequenceDatabase {
 	        }
 	        
 	        /* Store ref seq terminator char locations. */
-	        refSeqEndcharLocations = new ArrayList<Integer>(refSeqCount);
+	        int[] rawRefSeqEndcharLocations = new int[refSeqCount];
+	        int endcharCount = 0;
 	        for (int ri=0; ri < rawRefSeq.length; ri++) {
 	        	if (rawRefSeq[ri] == '$') {
-	        		refSeqEndcharLocations.add(ri);
+	        		rawRefSeqEndcharLocations[endcharCount++] = ri;
 	        	}
 	        }
+	        refSeqEndcharLocations = IntBuffer.wrap(rawRefSeqEndcharLocations);
 	        
 	        /* Store ref seq ids. */
 	        dis.readFully(rawRefSeqIds);
@@ -185,7 +396,7 @@ class DNASequenceDatabase {
 	        /* Each seq id entry is terminated by '\n' so we don't need to 
 	         * treat the last seq id as a special case. */
 	        
-	        if (refSeqIds.size() != refSeqEndcharLocations.size()) {
+	        if (refSeqIds.size() != refSeqEndcharLocations.limit()) {
 	        	throw new RuntimeException("INTERNAL ERROR: refSeqId array size inconsistency.");
 	        }
 	        
@@ -197,10 +408,10 @@ class DNASequenceDatabase {
 	        	rawPosList[i] = dis.readInt();
 	        }
 			int numKmers = 1 << (2 * KMER_LEN);
-			this.refSeq = rawRefSeq;
-			this.kmerLookup = new int[numKmers];
-			for (i=0; i < kmerLookup.length; i++) {
-				kmerLookup[i] = KMER_NON_EXISTENT;
+			this.refSeq = PackedRefSeq.pack(rawRefSeq);
+			int[] rawKmerLookup = new int[numKmers];
+			for (i=0; i < rawKmerLookup.length; i++) {
+				rawKmerLookup[i] = KMER_NON_EXISTENT;
 			}
 			
 			/* 'rawKmerList' consists of interlaced (kmer, offset) pairs. 
@@ -208,9 +419,11 @@ class DNASequenceDatabase {
 			for (i=0; i < rawKmerList.length; i += 2) {
 				
 				int kmer = rawKmerList[i];
-				kmerLookup[kmer] = rawKmerList[i+1];
+				rawKmerLookup[kmer] = rawKmerList[i+1];
 			}
-			this.posArray = rawPosList;
+			compressPostings(rawKmerLookup, rawPosList);
+			this.kmerPresence = buildKmerPresence(kmerLookup);
+			this.rawRefSeqIds = rawRefSeqIds;
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -219,28 +432,241 @@ class DNASequenceDatabase {
 		closeDBFile();
 	}
 	
-	/* 'start' and 'stop' are Python-style indexes (zero-indexed and half-open). */
-	int dnaToBinaryInt(byte[] seq, int start, int stop) {
-		int result = 0;
-		int lettermask;
-		for (int i=start; i < stop; i++) {
-			switch (seq[i]) {
-	        	case 'A': lettermask = 0;
-	        		break;
-	        	case 'C': lettermask = 1;
-	        		break;
-	        	case 'G': lettermask = 2;
-	        		break;
-	        	case 'T': lettermask = 3;
-	        		break;
-	        	default:
-	        		throw new RuntimeException(
-	        				"Invalid letter in sequence: " + seq[i] + ". This is an error in miRTrace. :-("
-	        		);
+	/* Converts the flat posArray of the .db.gz format, where the last entry 
+	 * of each list is negated, to compressed posting lists. A list whose 
+	 * last entry is offset 0 cannot carry the end marker (-0 == 0), so the 
+	 * list starts are needed to find its end. */
+	private void compressPostings(int[] rawKmerLookup, int[] rawPosList) {
+		BitSet listStarts = new BitSet(rawPosList.length);
+		for (int kmer=0; kmer < rawKmerLookup.length; kmer++) {
+			if (rawKmerLookup[kmer] != KMER_NON_EXISTENT) {
+				listStarts.set(rawKmerLookup[kmer]);
+			}
+		}
+		PostingLists.Builder builder = new PostingLists.Builder();
+		int[] entries = new int[16];
+		for (int kmer=0; kmer < rawKmerLookup.length; kmer++) {
+			if (rawKmerLookup[kmer] == KMER_NON_EXISTENT) {
+				continue;
+			}
+			int count = 0;
+			for (int j=rawKmerLookup[kmer]; ; j++) {
+				int refSeqOffset = rawPosList[j];
+				boolean lastPosArrayEntryFound = false;
+				if (refSeqOffset < 0) {
+					refSeqOffset = -refSeqOffset;
+					lastPosArrayEntryFound = true;
+				}
+				if (count == entries.length) {
+					entries = Arrays.copyOf(entries, 2 * count);
+				}
+				entries[count++] = refSeqOffset;
+				if (lastPosArrayEntryFound || j + 1 == rawPosList.length || listStarts.get(j + 1)) {
+					break;
+				}
+			}
+			rawKmerLookup[kmer] = builder.add(entries, count);
+		}
+		kmerLookup = IntBuffer.wrap(rawKmerLookup);
+		postings = builder.build();
+	}
+	
+	private static long[] buildKmerPresence(IntBuffer kmerLookup) {
+		long[] presence = new long[(kmerLookup.limit() + 63) / 64];
+		for (int kmer=0; kmer < kmerLookup.limit(); kmer++) {
+			if (kmerLookup.get(kmer) != KMER_NON_EXISTENT) {
+				presence[kmer >>> 6] |= 1L << kmer;
+			}
+		}
+		return presence;
+	}
+	
+	boolean kmerExists(int kmer) {
+		return (kmerPresence[kmer >>> 6] & (1L << kmer)) != 0;
+	}
+	
+	/* Counts the seed kmers of the query (every KMER_LEN:th kmer, as used 
+	 * by the search methods) that don't occur in the database. Every such 
+	 * kmer implies at least one mismatch. */
+	int countMissingSeeds(int queryStart, int querySeqLen, SearchContext context) {
+		int missing = 0;
+		for (int i=0; i < querySeqLen - KMER_LEN + 1; i += KMER_LEN) {
+			if (!kmerExists(context.queryKmers[queryStart + i])) {
+				missing++;
+			}
+		}
+		return missing;
+	}
+	
+	/**
+	 * Builds the exact window index used by the sliding window searches, 
+	 * which then become one hash probe per window. 
+	 */
+	void buildWindowIndex() {
+		if (Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE != 2 * KMER_LEN) {
+			/* Windows are looked up as two adjacent query kmers. */
+			return;
+		}
+		windowIndex = PackedSeqIndex.ofWindows(this, Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE);
+	}
+	
+	private static IntBuffer intSection(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer section = buffer.duplicate();
+		section.position(offset);
+		section.limit(offset + length * 4);
+		return section.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+	
+	private static ByteBuffer byteSection(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer section = buffer.duplicate();
+		section.position(offset);
+		section.limit(offset + length);
+		return section.slice();
+	}
+	
+	private static LongBuffer longSection(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer section = buffer.duplicate();
+		section.position(offset);
+		section.limit(offset + length * 8);
+		return section.slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+	}
+	
+	private static int align8(int offset) {
+		return (offset + 7) & ~7;
+	}
+	
+	private static long indexFileSize(int kmerLookupLength, int postingsLength, int refSeqCount, 
+			int refSeqLength, int refSeqIdsLength) {
+		long size = align8(INDEX_FILE_HEADER_SIZE + 4 * (kmerLookupLength + refSeqCount));
+		size += 8L * (PackedRefSeq.baseWords(refSeqLength) + 2 * PackedRefSeq.bitmapWords(refSeqLength));
+		return size + postingsLength + refSeqIdsLength;
+	}
+	
+	/* Returns false if the index file is unusable (it will then be rebuilt). */
+	private boolean mapIndexFile(File indexFile) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(indexFile, "r");
+			long fileSize = raf.length();
+			if ((fileSize < INDEX_FILE_HEADER_SIZE) || (fileSize > Integer.MAX_VALUE)) {
+				return false;
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+			buffer.order(ByteOrder.nativeOrder());
+			if ((buffer.getLong(0) != INDEX_FILE_MAGIC) || 
+					(buffer.getInt(8) != INDEX_FILE_FORMAT_VERSION) ||
+					(buffer.getInt(12) != BYTE_ORDER_MARKER)) {
+				return false;
+			}
+			int refSeqLength = buffer.getInt(16);
+			int refSeqIdsLength = buffer.getInt(20);
+			int postingsLength = buffer.getInt(24);
+			int count = buffer.getInt(28);
+			int kmerLookupLength = buffer.getInt(32);
+			if ((kmerLookupLength != 1 << (2 * KMER_LEN)) || (fileSize != indexFileSize(kmerLookupLength, 
+					postingsLength, count, refSeqLength, refSeqIdsLength))) {
+				return false;
+			}
+			int offset = INDEX_FILE_HEADER_SIZE;
+			kmerLookup = intSection(buffer, offset, kmerLookupLength);
+			kmerPresence = buildKmerPresence(kmerLookup);
+			offset += 4 * kmerLookupLength;
+			refSeqEndcharLocations = intSection(buffer, offset, count);
+			offset += 4 * count;
+			offset = align8(offset);
+			int baseWords = PackedRefSeq.baseWords(refSeqLength);
+			int bitmapWords = PackedRefSeq.bitmapWords(refSeqLength);
+			LongBuffer bases = longSection(buffer, offset, baseWords);
+			offset += 8 * baseWords;
+			LongBuffer endchars = longSection(buffer, offset, bitmapWords);
+			offset += 8 * bitmapWords;
+			LongBuffer others = longSection(buffer, offset, bitmapWords);
+			offset += 8 * bitmapWords;
+			refSeq = new PackedRefSeq(refSeqLength, bases, endchars, others);
+			postings = byteSection(buffer, offset, postingsLength);
+			offset += postingsLength;
+			
+			/* The ids are few enough to be decoded right away. */
+			refSeqIds = new ArrayList<String>(count);
+			int idStrStartPos = offset;
+			for (int ri = offset; ri < offset + refSeqIdsLength; ri++) {
+				if (buffer.get(ri) == '\n') {
+					byte[] id = new byte[ri - idStrStartPos];
+					for (int j = 0; j < id.length; j++) {
+						id[j] = buffer.get(idStrStartPos + j);
+					}
+					refSeqIds.add(new String(id));
+					idStrStartPos = ri + 1;
+				}
+			}
+			if (refSeqIds.size() != count) {
+				return false;
+			}
+			refSeqCount = count;
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (raf != null) {
+				try {
+					/* The mapping stays valid after the file is closed. */
+					raf.close();
+				} catch (IOException e) {
+					/* Nothing more to do. */
+				}
+			}
+		}
+	}
+	
+	/* Writes the parsed database as an index file. The file is written under
+	 * a temporary name and then renamed, so that concurrent miRTrace runs 
+	 * never see a partial file. Failures only produce a warning. */
+	private void writeIndexFile(File indexCacheDir, File indexFile) {
+		File tmpFile = null;
+		try {
+			if (!indexCacheDir.isDirectory() && !indexCacheDir.mkdirs()) {
+				throw new IOException("Could not create directory " + indexCacheDir);
+			}
+			tmpFile = File.createTempFile(indexFile.getName(), ".tmp", indexCacheDir);
+			long fileSize = indexFileSize(kmerLookup.limit(), postings.limit(), 
+					refSeqEndcharLocations.limit(), refSeq.length(), rawRefSeqIds.length);
+			RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+			try {
+				raf.setLength(fileSize);
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+				buffer.order(ByteOrder.nativeOrder());
+				buffer.putLong(0, INDEX_FILE_MAGIC);
+				buffer.putInt(8, INDEX_FILE_FORMAT_VERSION);
+				buffer.putInt(12, BYTE_ORDER_MARKER);
+				buffer.putInt(16, refSeq.length());
+				buffer.putInt(20, rawRefSeqIds.length);
+				buffer.putInt(24, postings.limit());
+				buffer.putInt(28, refSeqEndcharLocations.limit());
+				buffer.putInt(32, kmerLookup.limit());
+				buffer.position(INDEX_FILE_HEADER_SIZE);
+				buffer.asIntBuffer().put(kmerLookup.array());
+				buffer.position(buffer.position() + 4 * kmerLookup.limit());
+				buffer.asIntBuffer().put(refSeqEndcharLocations.array());
+				buffer.position(align8(buffer.position() + 4 * refSeqEndcharLocations.limit()));
+				for (LongBuffer words : new LongBuffer[] {refSeq.bases, refSeq.endchars, refSeq.others}) {
+					buffer.asLongBuffer().put(words.array());
+					buffer.position(buffer.position() + 8 * words.limit());
+				}
+				buffer.put(postings.array());
+				buffer.put(rawRefSeqIds);
+				buffer.force();
+			} finally {
+				raf.close();
+			}
+			Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("WARNING: Could not write database index file '" + indexFile + 
+					"' (" + e.getMessage() + ").");
+			if (tmpFile != null) {
+				tmpFile.delete();
 			}
-			result = (result << 2) | lettermask;
 		}
-		return result;
+		rawRefSeqIds = null;
 	}
 	
 	/* Calculate which reference sequence a particular offset belongs to, 
@@ -248,10 +674,18 @@ class DNASequenceDatabase {
 	 * The sequences are enumerated by database occurrence.
      */
 	int calculateRefSeqIndex(int refSeqOffset) {
-		int refSeqId = Collections.binarySearch(refSeqEndcharLocations, refSeqOffset);
-		if (refSeqId < 0) {
-			refSeqId = -refSeqId - 1;
+		/* Binary search for the first end-char location >= refSeqOffset. */
+		int lo = 0;
+		int hi = refSeqEndcharLocations.limit();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (refSeqEndcharLocations.get(mid) < refSeqOffset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
 		}
+		int refSeqId = lo;
 		if (refSeqId < 0) {
 			throw new IllegalArgumentException("Negative refSeqId.");
 		}
@@ -262,62 +696,98 @@ class DNASequenceDatabase {
 		return refSeqIds.get(refSeqIndex);
 	}
 	
-	SearchResult slidingWindowSearch(byte[] querySeq, int querySeqLen) {
-		return slidingWindowSearch(querySeq, querySeqLen, DNASequenceDatabase.NO_MATCH);
-	}
-	
 	/* Attempt to match using a sliding window of kmers in the query seq. 
-	 * Used for mapping artifacts. */
-	SearchResult slidingWindowSearch(byte[] querySeq, int querySeqLen, int lastRefSeqIdMatched) {
-		byte[] slidingSearchQueryWindow = new byte[Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE];
+	 * Used for mapping artifacts. The query kmers must have been encoded
+	 * into 'context' (see SearchContext.encodeQuery). */
+	boolean slidingWindowSearch(int querySeqLen, int lastRefSeqIdMatched, 
+			SearchContext context) {
 		int lastKmerToConsider = querySeqLen - Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE;
-		for (int i=0; i < lastKmerToConsider + 1; i++) {
-			for (int j=0; j < Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE; j++) {
-				slidingSearchQueryWindow[j]	= querySeq[i+j];			
+		if (windowIndex != null) {
+			context.result.clear();
+			for (int i=0; i < lastKmerToConsider + 1; i++) {
+				int slot = windowIndex.lookup(packedWindow(i, context));
+				if (slot == PackedSeqIndex.NOT_FOUND) {
+					continue;
+				}
+				for (int j=0; j < windowIndex.getIdCount(slot); j++) {
+					if (windowIndex.getId(slot, j) > lastRefSeqIdMatched) {
+						context.result.set(windowIndex.getId(slot, j), 0, 
+								Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE - 1);
+						return true;
+					}
+				}
 			}
-			SearchResult m = search(slidingSearchQueryWindow, Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE, 0, false, false, lastRefSeqIdMatched);
-			if (m.matches) {
-				return m;
+			return false;
+		}
+		for (int i=0; i < lastKmerToConsider + 1; i++) {
+			if (search(i, Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE, 0, false, false, 
+					lastRefSeqIdMatched, context)) {
+				return true;
 			}
 		}		
-		return NO_MATCH_RESULT;
+		return false;
 	}
-
-	/* See 'search' for a description of the arguments. */
-	SearchResult search(byte[] querySeq, int querySeqLen, int maxMismatches, 
-			boolean mustMatchWholeRefSeq, boolean mustMatchRefSeqStart) {
-		return search(querySeq, querySeqLen, maxMismatches, mustMatchWholeRefSeq, mustMatchRefSeqStart,
-				DNASequenceDatabase.NO_MATCH);
+	
+	/* The window starting at query position 'queryStart', packed like the 
+	 * keys of 'windowIndex'. */
+	private static long packedWindow(int queryStart, SearchContext context) {
+		return ((long) context.queryKmers[queryStart] << (2 * KMER_LEN)) | 
+				context.queryKmers[queryStart + KMER_LEN];
 	}
 	
-	/* The 'querySeq' argument is an ASCII-encoded sequence string. 
+	/* Sliding window variant of searchAll(). */
+	boolean slidingWindowSearchAll(int querySeqLen, SearchContext context) {
+		int lastKmerToConsider = querySeqLen - Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE;
+		boolean found = false;
+		for (int i=0; i < lastKmerToConsider + 1; i++) {
+			if (windowIndex != null) {
+				int slot = windowIndex.lookup(packedWindow(i, context));
+				if (slot != PackedSeqIndex.NOT_FOUND) {
+					for (int j=0; j < windowIndex.getIdCount(slot); j++) {
+						context.hits.add(windowIndex.getId(slot, j));
+					}
+					found = true;
+				}
+			} else if (searchAll(i, Config.ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE, 0, false, false, 
+					context)) {
+				found = true;
+			}
+		}		
+		return found;
+	}
+	
+	/* Searches the query (of which 'querySeqLen' bases starting at 
+	 * 'queryStart' are used) against the reference sequences following 
+	 * 'lastRefSeqIdMatched' (or all, if NO_MATCH). The query must have been
+	 * encoded into 'context' (see SearchContext.encodeQuery). 
+	 * 
 	 * RETURNS
-	 * 		'NO_MATCH' if no match, else a positive (>= 0) sequence index. */
-	SearchResult search(byte[] querySeq, int querySeqLen, int maxMismatches, 
-			boolean mustMatchWholeRefSeq, boolean mustMatchRefSeqStart, int lastRefSeqIdMatched) {
-		// TODO ENHANCEMENT: decrease the nesting depth of this method by splitting it up.
-		if (refSeq.length == 0) {
-			return NO_MATCH_RESULT;
+	 * 		true if a match was found. The match is stored in context.result. */
+	boolean search(int queryStart, int querySeqLen, int maxMismatches, 
+			boolean mustMatchWholeRefSeq, boolean mustMatchRefSeqStart, int lastRefSeqIdMatched, 
+			SearchContext context) {
+		context.result.clear();
+		if (refSeq.length() == 0 || countMissingSeeds(queryStart, querySeqLen, context) > maxMismatches) {
+			return false;
 		}
 		
-		int posArrayOffset;
-		int binaryQueryKmer;
+		int postingsOffset;
 		int failedKmerCount = 0;
 		int lastKmerToConsider = querySeqLen - KMER_LEN;
 		
-		if (lastRefSeqIdMatched >= refSeqEndcharLocations.size()) {
+		if (lastRefSeqIdMatched >= refSeqEndcharLocations.limit()) {
 			throw new IllegalArgumentException("INTERNAL ERROR: lastRefSeqIdMatched too large.");
 		}
 		
 		int refSeqInitialPos;
 		if (lastRefSeqIdMatched == DNASequenceDatabase.NO_MATCH) {
 			refSeqInitialPos = 0;
-		} else if (lastRefSeqIdMatched >= refSeqEndcharLocations.size() - 1) {
-			return NO_MATCH_RESULT;		
+		} else if (lastRefSeqIdMatched >= refSeqEndcharLocations.limit() - 1) {
+			return false;		
 		} else {
 			refSeqInitialPos = refSeqEndcharLocations.get(lastRefSeqIdMatched) + 1;
 		}
-		if (refSeqInitialPos >= refSeq.length) {
+		if (refSeqInitialPos >= refSeq.length()) {
 			throw new IllegalArgumentException("INTERNAL ERROR: refSeqInitialPos too large.");
 		}
 		
@@ -326,109 +796,262 @@ class DNASequenceDatabase {
 		 * has to be correct if there is at most one mismatch in the query. 
 	     */
 		for (int i=0; i < lastKmerToConsider + 1; i += KMER_LEN) {
-			binaryQueryKmer = dnaToBinaryInt(querySeq, i, i + KMER_LEN);
-			posArrayOffset = kmerLookup[binaryQueryKmer]; 
-			if (posArrayOffset == KMER_NON_EXISTENT) {
+			postingsOffset = kmerLookup.get(context.queryKmers[queryStart + i]); 
+			if (postingsOffset == KMER_NON_EXISTENT) {
 				failedKmerCount++;
 				if (failedKmerCount > maxMismatches) {
 					// We now have at least <failedKmerCount> mismatches. Abort search.
-					return NO_MATCH_RESULT;
+					return false;
 				}
 			} else {
-				// TODO: Consider breaking this block out into a separate function.
-				
 				/* Found candidate sequences. Perform alignment(s). */
-				boolean lastPosArrayEntryFound = false;
-				for (int j=posArrayOffset; !lastPosArrayEntryFound; j++) {
-					int refSeqOffset = posArray[j];
-					if (refSeqOffset < 0) {
-						refSeqOffset = -refSeqOffset;
-						lastPosArrayEntryFound = true;
-					}
+				PostingLists.Cursor postings = context.postings;
+				postings.open(this.postings, postingsOffset);
+				while (postings.next()) {
+					int refSeqOffset = postings.value;
 					if (refSeqOffset < refSeqInitialPos) {
 						continue;
 					}
-					int mismatches = 0;
-
-					/* Backtrack query pointer to start of query seq. */
-					int queryIdx = 0;
-					
-					/* Backtrack ref pointer */
-					int k;
-					if (mustMatchWholeRefSeq || mustMatchRefSeqStart) {
-						/* Backtrack ref pointer to refSeq start. */
-						int refSeqId = calculateRefSeqIndex(refSeqOffset);
-						if (refSeqId == 0) {
-							k = 0;
-						} else {
-							k = refSeqEndcharLocations.get(refSeqId - 1);
-							k++;
-						}
-					} else {
-						/* Backtrack ref pointer to start of candidate alignment. */
-						k = refSeqOffset - i;					
+					int refSeqId = align(context, queryStart, querySeqLen, maxMismatches, 
+							mustMatchWholeRefSeq, mustMatchRefSeqStart, i, refSeqOffset);
+					if (refSeqId != NO_MATCH) {
+						/* The query start must be 0 since we don't allow indels,
+						 * and the whole seq must have been consumed. */
+						context.result.set(refSeqId, 0, querySeqLen - 1);
+						return true;
 					}
-										
-					if (k >= 0) {
-						// Here k is positive, so we have enough "room" at the start
-						// of the ref seq to actually do the alignment. 
-						// We still need to look out for sequence separators ("$").
-						for (;; queryIdx++, k++) {
-							if (queryIdx >= querySeqLen) {
-								/* Query sequence has been consumed. */
-								if (mustMatchWholeRefSeq) {
-									if (k < refSeq.length) {
-										if (refSeq[k] == ENDCHAR_BYTE) {
-											int querySeqStart = 0; /* Must be 0 since we're in 'mustMatchWholeRefSeq' mode. */
-											int querySeqEnd = querySeqLen - 1; /* Whole seq must have been consumed. */
-											return new SearchResult(true, calculateRefSeqIndex(k), querySeqStart, querySeqEnd);
-										}
-									}
-									break;
-								} else {
-									int querySeqStart = 0; /* Must be 0 since we don't allow indels. */ 
-									int querySeqEnd = querySeqLen - 1; /* Whole seq must have been consumed. */
-									/* Note that the above calculation will give misleading 
-									 * results when mismatches are allowed. */
-									return new SearchResult(true, calculateRefSeqIndex(k), querySeqStart, querySeqEnd);
-								}
-							}
-							if (k >= refSeq.length) {
-								throw new RuntimeException(
-										"Invalid database: reference sequence lacks terminator character. ");
-							}
-							if (refSeq[k] == ENDCHAR_BYTE) {
-								// We have now either 
-								// (1) reached the end of the reference sequence
-								//     without consuming the query, or
-								// (2) realized that we've mistakenly tried to 
-								//     align across a reference sequence separator.
-								// Conclusion: no match.
-								break;
-							}
-							if (refSeq[k] != querySeq[queryIdx]) {
-								mismatches++;
-								// DEBUG: FOR CONSISTENCY TEST WITH BOWTIE:
-								/*if (refSeq[k] == 'N') {
-									alignmentOK = false;
-									break;
-								}*/
-							}
-							if (mismatches > maxMismatches) {
-								break;
-							}
-						}
+				}
+			}
+		}
+		return false;
+	}
+	
+	/* Like search(), but finds every reference sequence the query matches, 
+	 * in a single pass over the candidate positions. The ids of the matching
+	 * reference sequences are appended to context.hits, which is neither 
+	 * cleared nor deduplicated here (see IntList.sortAndDeduplicate), so 
+	 * that hits from several searches can be collected. 
+	 * 
+	 * RETURNS
+	 * 		true if at least one match was found. */
+	boolean searchAll(int queryStart, int querySeqLen, int maxMismatches, 
+			boolean mustMatchWholeRefSeq, boolean mustMatchRefSeqStart, SearchContext context) {
+		return searchAll(queryStart, querySeqLen, maxMismatches, mustMatchWholeRefSeq, 
+				mustMatchRefSeqStart, 0, refSeq.length(), context);
+	}
+	
+	/* searchAll() restricted to the given part of a concatenated database. 
+	 * The ids appended to context.hits are relative to the part. */
+	boolean searchAllInPart(int part, int querySeqLen, int maxMismatches, 
+			SearchContext context) {
+		IntList hits = context.hits;
+		int initialHitCount = hits.size();
+		if (!searchAll(0, querySeqLen, maxMismatches, false, false, 
+				partRefSeqOffsets[part], partRefSeqOffsets[part + 1], context)) {
+			return false;
+		}
+		for (int i=initialHitCount; i < hits.size(); i++) {
+			hits.values[i] -= partRefSeqIdOffsets[part];
+		}
+		return true;
+	}
+	
+	/* Only candidate positions in [refSeqOffsetFrom, refSeqOffsetTo) are aligned. */
+	private boolean searchAll(int queryStart, int querySeqLen, int maxMismatches, 
+			boolean mustMatchWholeRefSeq, boolean mustMatchRefSeqStart, int refSeqOffsetFrom, 
+			int refSeqOffsetTo, SearchContext context) {
+		if (refSeq.length() == 0 || countMissingSeeds(queryStart, querySeqLen, context) > maxMismatches) {
+			return false;
+		}
+		IntList hits = context.hits;
+		int initialHitCount = hits.size();
+		int failedKmerCount = 0;
+		int lastKmerToConsider = querySeqLen - KMER_LEN;
+		
+		for (int i=0; i < lastKmerToConsider + 1; i += KMER_LEN) {
+			int postingsOffset = kmerLookup.get(context.queryKmers[queryStart + i]); 
+			if (postingsOffset == KMER_NON_EXISTENT) {
+				failedKmerCount++;
+				if (failedKmerCount > maxMismatches) {
+					/* No alignment can have fewer mismatches than there are 
+					 * missing kmers, so nothing found so far can be a match. */
+					hits.size = initialHitCount;
+					return false;
+				}
+				continue;
+			}
+			/* The posting list entries are in ascending order, so positions 
+			 * within the reference sequence matched last can be skipped
+			 * without aligning them. */
+			int skipFrom = 0;
+			int skipTo = -1;
+			PostingLists.Cursor postings = context.postings;
+			postings.open(this.postings, postingsOffset);
+			while (postings.next()) {
+				int refSeqOffset = postings.value;
+				if ((refSeqOffset >= skipFrom && refSeqOffset <= skipTo) || 
+						refSeqOffset < refSeqOffsetFrom || refSeqOffset >= refSeqOffsetTo) {
+					continue;
+				}
+				int refSeqId = align(context, queryStart, querySeqLen, maxMismatches, 
+						mustMatchWholeRefSeq, mustMatchRefSeqStart, i, refSeqOffset);
+				if (refSeqId != NO_MATCH) {
+					hits.add(refSeqId);
+					skipFrom = refSeqId == 0 ? 0 : refSeqEndcharLocations.get(refSeqId - 1) + 1;
+					skipTo = refSeqEndcharLocations.get(refSeqId);
+				}
+			}
+		}
+		return hits.size() > initialHitCount;
+	}
+	
+	/**
+	 * Looks up the posting lists of the seed kmers of an encoded query ahead 
+	 * of searchBestPart(). When this is called for a batch of queries before 
+	 * any of them is searched, the kmerLookup reads (mostly cache misses) of 
+	 * all queries are independent of each other and overlap, instead of each
+	 * search stalling on its own reads. The seeds stay valid until the 
+	 * context encodes another query.
+	 */
+	void lookupSeeds(int querySeqLen, SearchContext context) {
+		int lastKmerToConsider = querySeqLen - KMER_LEN;
+		for (int i=0; i < lastKmerToConsider + 1; i += KMER_LEN) {
+			context.seedPostingsOffsets[i / KMER_LEN] = kmerLookup.get(context.queryKmers[i]);
+		}
+		context.seedDatabase = this;
+	}
+	
+	/* For databases concatenated from several parts: searches the parts 
+	 * from 'firstPart' on in one pass, ranking matches first by number of 
+	 * mismatches (at most 'maxMismatches') and then by part index, lower 
+	 * being better. The query kmers must have been encoded into 'context'.
+	 * 
+	 * RETURNS
+	 * 		the index of the part with the best match, or NO_MATCH. */
+	int searchBestPart(int querySeqLen, int maxMismatches, int firstPart, 
+			SearchContext context) {
+		boolean seedsLookedUp = context.seedDatabase == this;
+		if (refSeq.length() == 0) {
+			return NO_MATCH;
+		}
+		int lastKmerToConsider = querySeqLen - KMER_LEN;
+		if (seedsLookedUp) {
+			int missing = 0;
+			for (int i=0; i < lastKmerToConsider + 1; i += KMER_LEN) {
+				if (context.seedPostingsOffsets[i / KMER_LEN] == KMER_NON_EXISTENT) {
+					missing++;
+				}
+			}
+			if (missing > maxMismatches) {
+				return NO_MATCH;
+			}
+		} else if (countMissingSeeds(0, querySeqLen, context) > maxMismatches) {
+			return NO_MATCH;
+		}
+		int bestPart = NO_MATCH;
+		int bestMismatches = maxMismatches + 1;
+		int failedKmerCount = 0;
+		
+		for (int i=0; i < lastKmerToConsider + 1; i += KMER_LEN) {
+			int postingsOffset = seedsLookedUp ? context.seedPostingsOffsets[i / KMER_LEN] : 
+					kmerLookup.get(context.queryKmers[i]); 
+			if (postingsOffset == KMER_NON_EXISTENT) {
+				failedKmerCount++;
+				if (failedKmerCount > maxMismatches) {
+					return NO_MATCH;
+				}
+				continue;
+			}
+			PostingLists.Cursor postings = context.postings;
+			postings.open(this.postings, postingsOffset);
+			while (postings.next()) {
+				int refSeqOffset = postings.value;
+				if (refSeqOffset < partRefSeqOffsets[firstPart]) {
+					continue;
+				}
+				int part = firstPart;
+				while (refSeqOffset >= partRefSeqOffsets[part + 1]) {
+					part++;
+				}
+				/* Only look for matches that would beat the best one so far. */
+				int allowedMismatches = part < bestPart ? bestMismatches : bestMismatches - 1;
+				if (allowedMismatches < 0) {
+					/* The posting lists are in part order. */
+					break;
+				}
+				int k = refSeqOffset - i;
+				if (k < 0) {
+					continue;
+				}
+				int mismatches = refSeq.countMismatches(context.queryPacked, 0, querySeqLen, 
+						allowedMismatches, k);
+				if (mismatches != PackedRefSeq.NO_MATCH) {
+					bestPart = part;
+					bestMismatches = mismatches;
+					if (bestMismatches == 0 && bestPart == firstPart) {
+						return bestPart;
 					}
 				}
 			}
 		}
-		return NO_MATCH_RESULT;
+		return bestPart;
 	}
-
+	
+	/* Aligns the query against the reference, anchored at the kmer at query 
+	 * position 'seedQueryPos' found at reference offset 'refSeqOffset'.
+	 * 
+	 * RETURNS
+	 * 		the id of the matching reference sequence, or NO_MATCH. */
+	int align(SearchContext context, int queryStart, int querySeqLen, int maxMismatches, 
+			boolean mustMatchWholeRefSeq, boolean mustMatchRefSeqStart, int seedQueryPos,
+			int refSeqOffset) {
+		/* Backtrack ref pointer */
+		int k;
+		if (mustMatchWholeRefSeq || mustMatchRefSeqStart) {
+			/* Backtrack ref pointer to refSeq start. */
+			int refSeqId = calculateRefSeqIndex(refSeqOffset);
+			if (refSeqId == 0) {
+				k = 0;
+			} else {
+				k = refSeqEndcharLocations.get(refSeqId - 1);
+				k++;
+			}
+		} else {
+			/* Backtrack ref pointer to start of candidate alignment. */
+			k = refSeqOffset - seedQueryPos;					
+		}
+		if (k < 0) {
+			/* Not enough "room" at the start of the ref seq to do the alignment. */
+			return NO_MATCH;
+		}
+		/* Word-parallel comparison, which also stops at sequence separators 
+		 * ("$"), so that no alignment crosses into the next reference seq. */
+		if (refSeq.countMismatches(context.queryPacked, queryStart, querySeqLen, maxMismatches, k) 
+				== PackedRefSeq.NO_MATCH) {
+			return NO_MATCH;
+		}
+		/* Query sequence has been consumed. */
+		k += querySeqLen;
+		if (mustMatchWholeRefSeq) {
+			if (k < refSeq.length() && refSeq.isEndchar(k)) {
+				return calculateRefSeqIndex(k);
+			}
+			return NO_MATCH;
+		} else {
+			/* Note that this will give misleading results when 
+			 * mismatches are allowed. */
+			return calculateRefSeqIndex(k);
+		}
+	}
+	
 	int getRefSeqCount() {
 		return refSeqCount;
 	}
 	
+	HashCode getChecksum() {
+		return checksum;
+	}
+	
 	String getSeqId(int index) {
 		return refSeqIds.get(index);
 	}
@@ -20,6 +20,7 @@
 package se.scilifelab.mirtrace;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.NoSuchElementException;
@@ -33,11 +34,25 @@ import com.google.common.hash.Hashing;
  *
  */
 public class DNASequenceHashMap {
+	
+	/** Notified by putSequence() of each sequence not already in the hash map. */
+	interface NewSequenceListener {
+		
+		/** @param seqNum The number of the sequence in the hash map. Sequences 
+		 * are numbered 0, 1, ... in insertion order, and the iterator hands
+		 * the number out again in DNASequenceHashMapEntry.seqNum.
+		 * @param packedSeq The sequence, 2-bit packed like the sequences of 
+		 * the hash map (0 past its end). Only valid during the call.
+		 */
+		void newSequence(int seqNum, long[] packedSeq, int seqLen);
+	}
 		
 	/* HashTable Flags */
 	static final byte HT_BUCKET_OCCUPIED = 1;
 	static final byte HT_ADAPTER_DETECTED = 2;
-	static final int HT_LOOKUP_SLOT_EMPTY = -1;
+	/* Lookup slots hold the bucket index + 1, so that a freshly allocated 
+	 * (zeroed) lookup table is empty without any initialisation. */
+	static final int HT_LOOKUP_SLOT_EMPTY = 0;
 	
 	/* Constants */
 	static final int INVERSE_SIGN_BIT_BITMASK = ~(1 << 31);
@@ -82,6 +97,7 @@ public class DNASequenceHashMap {
 	
 	/* HashMap state. */
 	int usedBuckets = 0;
+	NewSequenceListener newSequenceListener;
 	
 	/* Warnings. */	
 	boolean seqCountOverflowWarning = false;
@@ -94,7 +110,7 @@ public class DNASequenceHashMap {
 			throw new IllegalArgumentException("Invalid capacity value.");
 		}
 		this.bucketsPerShard = capacity / ARRAY_SHARD_COUNT;
-		this.capacityTotal = bucketsPerShard * ARRAY_SHARD_COUNT;
+		this.capacityTotal = getActualCapacity(capacity);
 		this.lookupTableSize = capacityTotal * Config.HM_LOOKUP_TABLE_EXPANSION_FACTOR;
 		this.binaryConversionBuffer = new long[BUCKET_SIZE];
 		
@@ -105,9 +121,39 @@ public class DNASequenceHashMap {
 		this.htSequenceFirstDetectionDepth = new int[ARRAY_SHARD_COUNT][bucketsPerShard];
 		this.htFlags = new byte[ARRAY_SHARD_COUNT][bucketsPerShard];
 		this.htLookupArray = new int[lookupTableSize];
-		for (int i=0; i < lookupTableSize; i++) {
-			this.htLookupArray[i] = HT_LOOKUP_SLOT_EMPTY;
+	}
+	
+	/** The capacity of a hash map created for 'capacity' buckets
+	 * (rounded down to fill all shards equally). */
+	static int getActualCapacity(int capacity) {
+		return (capacity / ARRAY_SHARD_COUNT) * ARRAY_SHARD_COUNT;
+	}
+	
+	/** Packs an upper-case ASCII sequence into 'target' (BUCKET_SIZE longs), 
+	 * 2 bits per base, the first base in the least significant bits. Bits 
+	 * past the end of the sequence are 0.
+	 */
+	static void packSequence(byte[] seq, int seqLen, long[] target) {
+		long lettermask;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			target[i] = 0;
 		}
+	    for (int i = 0; i < seqLen; i++) {
+	        switch (seq[i]) {
+	        	case 'A': lettermask = 0;
+	        		break;
+	        	case 'C': lettermask = 1;
+	        		break;
+	        	case 'G': lettermask = 2;
+	        		break;
+	        	case 'T': lettermask = 3;
+	        		break;
+	        	default:
+	        		throw new RuntimeException("Invalid letter in sequence: " + seq[i] + 
+	        				" at position: " + i);
+	        }
+	        target[i / DNA_BASES_PER_BUCKET_PART] |= (lettermask << ((i % DNA_BASES_PER_BUCKET_PART) << 1));
+	    }
 	}
 	
 	/** Inserts sequence into hash table.
@@ -116,8 +162,7 @@ public class DNASequenceHashMap {
 	 * @return true if the insertion completed successfully, false if table is full.
 	 */
 	public boolean putSequence(byte[] seq, int seqLen, boolean adapterDetected, int sampleDepth, int seqCount) {
-		long lettermask;
-		int bufferOffset = 0;
+		int bufferOffset;
 		int hash;
 		int shard;
 		int bucket;
@@ -141,28 +186,8 @@ public class DNASequenceHashMap {
 		readCountOrderedIndexDirty = true;
 
 		/* Parse sequence into binaryConversionBuffer */
-		for (i = 0; i < BUCKET_SIZE; i++) {
-			this.binaryConversionBuffer[i] = 0;
-		}
-	    for (i = 0; i < seqLen; i++) {
-	    	if (i % DNA_BASES_PER_BUCKET_PART == 0) {
-	    		bufferOffset = i / DNA_BASES_PER_BUCKET_PART;
-	    	}
-	        switch (seq[i]) {
-	        	case 'A': lettermask = 0;
-	        		break;
-	        	case 'C': lettermask = 1;
-	        		break;
-	        	case 'G': lettermask = 2;
-	        		break;
-	        	case 'T': lettermask = 3;
-	        		break;
-	        	default:
-	        		throw new RuntimeException("Invalid letter in sequence: " + seq[i] + 
-	        				" at position: " + i);
-	        }
-	        this.binaryConversionBuffer[bufferOffset] |= (lettermask << ((i % DNA_BASES_PER_BUCKET_PART) << 1));
-	    }
+		packSequence(seq, seqLen, binaryConversionBuffer);
+		bufferOffset = (seqLen == 0) ? 0 : (seqLen - 1) / DNA_BASES_PER_BUCKET_PART;
 	    hash = 0;
 	    /* Calculate sequence hash */
 	    for (j = 0; j <= bufferOffset; j++) {
@@ -181,10 +206,10 @@ public class DNASequenceHashMap {
 	    		/* Search past end of table: wrap around. */
 	    		currentLookupIndex -= lookupTableSize;
 	    	}
-	    	int currentBucketIndex = htLookupArray[currentLookupIndex];
-	    	if (currentBucketIndex == HT_LOOKUP_SLOT_EMPTY) {
+	    	int currentLookupValue = htLookupArray[currentLookupIndex];
+	    	if (currentLookupValue == HT_LOOKUP_SLOT_EMPTY) {
 	    		/* New entry in hash table */ 
-	    		htLookupArray[currentLookupIndex] = usedBuckets;
+	    		htLookupArray[currentLookupIndex] = usedBuckets + 1;
 	    		shard = usedBuckets / bucketsPerShard;
 		    	bucket = usedBuckets % bucketsPerShard;	
 		    	this.htFlags[shard][bucket] = HT_BUCKET_OCCUPIED;
@@ -203,9 +228,13 @@ public class DNASequenceHashMap {
 	    					binaryConversionBuffer[i];
 	    		}
 	    		this.usedBuckets++;
+	    		if (newSequenceListener != null) {
+	    			newSequenceListener.newSequence(usedBuckets - 1, binaryConversionBuffer, seqLen);
+	    		}
 	    		return true;
 	    	} else {
 	    		/* Entry exists, test if its sequence is identical to the query. */
+	    		int currentBucketIndex = currentLookupValue - 1;
 	    		shard = currentBucketIndex / bucketsPerShard;
 		    	bucket = currentBucketIndex % bucketsPerShard;	
 	    		sequencesIdentical = true;
@@ -231,9 +260,28 @@ public class DNASequenceHashMap {
 	    throw new IllegalStateException("Hashmap insert failed despire HM having empty slots.");
 	}
 	
+	/** Empties the hash map so that it can be reused for another sample.
+	 * Only the lookup table needs clearing: bucket data is overwritten on 
+	 * insertion, and only the used buckets are ever iterated.
+	 */
+	void reset() {
+		Arrays.fill(htLookupArray, HT_LOOKUP_SLOT_EMPTY);
+		usedBuckets = 0;
+		iteratorPos = 0;
+		readCountOrderedIndex = null;
+		readCountOrderedIndexDirty = true;
+		seqCountOverflowWarning = false;
+		newSequenceListener = null;
+	}
+	
+	/** Sets the listener of new sequences, or null for none. */
+	void setNewSequenceListener(NewSequenceListener listener) {
+		newSequenceListener = listener;
+	}
+	
 	void initIterator() {
-		this.readCountOrderedIndex = new ArrayList<Integer>(capacityTotal);
-	    for (int i = 0; i < capacityTotal; i++) {
+		this.readCountOrderedIndex = new ArrayList<Integer>(usedBuckets);
+	    for (int i = 0; i < usedBuckets; i++) {
 	    	readCountOrderedIndex.add(i);
 	    }
 	    Collections.sort(readCountOrderedIndex, new Comparator<Integer>() {
@@ -265,8 +313,9 @@ public class DNASequenceHashMap {
 			}	    	
 	    });
 		readCountOrderedIndexDirty = false;
+		iteratorPos = 0;
 	}
-
+	
 	int getCapacity() {
 		return capacityTotal;
 	}
@@ -285,7 +334,6 @@ public class DNASequenceHashMap {
 		if (readCountOrderedIndexDirty) {
     		throw new IllegalStateException("Call to 'iteratorFetchNext()' while ordered index is dirty!");
     	}
-    	int bufferOffset = 0;
     	int shard;
 		int bucket;
         if (!iteratorHasNext()) {
@@ -294,36 +342,13 @@ public class DNASequenceHashMap {
     	shard = readCountOrderedIndex.get(iteratorPos) / bucketsPerShard;
     	bucket = readCountOrderedIndex.get(iteratorPos) % bucketsPerShard;
         
-        /* Setup outputs. */
-        byte seqLen = htSequenceLengths[shard][bucket];
-        byte[] outputSequence = entry.seq;
-	    entry.length = seqLen;
+        /* Setup outputs. The sequence is handed over packed, see 
+         * DNASequenceHashMapEntry.getSeq(). */
+	    entry.setPackedSeq(htSequences[shard], bucket * BUCKET_SIZE, htSequenceLengths[shard][bucket]);
 	    entry.count = htSequenceCounts[shard][bucket];
 	    entry.adapterDetected = (htFlags[shard][bucket] & HT_ADAPTER_DETECTED) == HT_ADAPTER_DETECTED;
 	    entry.firstDetectedDepth = htSequenceFirstDetectionDepth[shard][bucket];
-	    
-	    /* Generate output ASCII seq. */
-        int pb = bucket * BUCKET_SIZE;
-	    for (int i = 0; i < seqLen; i++) {
-	    	if (i % DNA_BASES_PER_BUCKET_PART == 0) {
-	    		bufferOffset = i / DNA_BASES_PER_BUCKET_PART;
-	    	}
-	    	int currentLetter = (int) (htSequences[shard][pb + bufferOffset] >>> 
-					((i % DNA_BASES_PER_BUCKET_PART) << 1)) & 0x03;
-	        switch (currentLetter) {
-	        	case 0: outputSequence[i] = 'A';
-	        		break;
-	        	case 1: outputSequence[i] = 'C';
-	        		break;
-	        	case 2: outputSequence[i] = 'G';
-	        		break;
-	        	case 3: outputSequence[i] = 'T';
-	        		break;
-	        	default:
-	        		throw new RuntimeException("Invalid letter in sequence: " + 
-	        				currentLetter);
-	        }
-	    }
+	    entry.seqNum = readCountOrderedIndex.get(iteratorPos);
 	    iteratorPos++;
 	}
 	        
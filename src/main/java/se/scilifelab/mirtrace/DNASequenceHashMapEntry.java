@@ -21,14 +21,24 @@ package se.scilifelab.mirtrace;
 
 class DNASequenceHashMapEntry {
 	
+	static final byte[] BASES = {'A', 'C', 'G', 'T'};
+	
+	/* 2-bit packed like the sequences of DNASequenceHashMap, bits past the
+	 * end of the sequence are 0. */
+	long[] packedSeq;
+	/* ASCII sequence, only decoded from 'packedSeq' on demand (see getSeq). */
 	byte[] seq;
+	boolean seqDecoded;
 	int count;
 	byte length;
 	boolean adapterDetected;
 	int firstDetectedDepth;
+	int seqNum; /* Number in the hash map it was fetched from, see DNASequenceHashMap.NewSequenceListener. */
 	
 	DNASequenceHashMapEntry() {
+		packedSeq = new long[DNASequenceHashMap.BUCKET_SIZE];
 		seq = new byte[Config.READ_LENGTH_CUTOFF];
+		seqDecoded = true;
 		count = 0;
 		length = 0;
 		adapterDetected = false;
@@ -36,14 +46,35 @@ class DNASequenceHashMapEntry {
 	}
 	
 	DNASequenceHashMapEntry(byte[] seq, byte length, int count, boolean adapterDetected, int firstDetectedDepth) {
+		this.packedSeq = new long[DNASequenceHashMap.BUCKET_SIZE];
+		DNASequenceHashMap.packSequence(seq, length, packedSeq);
 		this.seq = seq;
+		this.seqDecoded = true;
 		this.length = length;
 		this.count = count;
 		this.adapterDetected = adapterDetected;
 		this.firstDetectedDepth = firstDetectedDepth;
 	}
 	
+	/* Replaces the sequence by 'length' bases of 'packed', which must be 0
+	 * past the end of the sequence. */
+	void setPackedSeq(long[] packed, int offset, byte length) {
+		System.arraycopy(packed, offset, packedSeq, 0, DNASequenceHashMap.BUCKET_SIZE);
+		this.length = length;
+		seqDecoded = false;
+	}
+	
+	public long[] getPackedSeq() {
+		return packedSeq;
+	}
+	
 	public byte[] getSeq() {
+		if (!seqDecoded) {
+			for (int i=0; i < length; i++) {
+				seq[i] = BASES[(int) (packedSeq[i >>> 5] >>> ((i & 31) << 1)) & 3];
+			}
+			seqDecoded = true;
+		}
 		return seq;
 	}
 	
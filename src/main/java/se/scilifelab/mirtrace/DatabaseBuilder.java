@@ -0,0 +1,352 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds DNASequenceDatabase files (.db.gz) from FASTA files, like the 
+ * scripts in src/scripts/database_creation do: the same input yields the
+ * same (uncompressed) database.
+ * 
+ * The kmer posting lists are built by a parallel counting sort. The 
+ * reference sequence is split into one chunk per thread; each thread 
+ * counts the kmers of its chunk, the counts give every thread its own 
+ * slots in each list, and each thread then writes the positions of its 
+ * chunk into its slots. Chunks are in reference order, so every list 
+ * comes out in ascending order without any sorting.
+ * 
+ * The memory-mappable index file of the database (see DNASequenceDatabase)
+ * is written as well, so that the first run using --db-cache-dir doesn't
+ * have to parse the database.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class DatabaseBuilder {
+	
+	static final int KMER_LEN = DNASequenceDatabase.KMER_LEN;
+	/* Shorter sequences are discarded, as by mirtrace-db-generator.py. */
+	static final int MIN_VALID_SEQ_LEN = 18;
+	/* Separates the forward and the reverse complemented sequence of an
+	 * RNA type database entry, see generate-mirtrace-rnatype-database.py. */
+	static final String FW_BW_DELIM = "@@@";
+	
+	List<String> seqIds = new ArrayList<String>();
+	List<byte[]> seqs = new ArrayList<byte[]>();
+	
+	/**
+	 * Reads the sequences of a (possibly gzipped) FASTA file. In RNA type 
+	 * mode, U is read as T, each sequence is followed by its reverse 
+	 * complement and the sequences are renamed "seq_<n>" in file order.
+	 */
+	void readFASTA(File fastaFile, boolean rnaTypeMode) throws IOException {
+		InputStream is = new FileInputStream(fastaFile);
+		if (fastaFile.getName().endsWith(".gz")) {
+			is = new GZIPInputStream(is);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+		try {
+			Set<String> ids = new HashSet<String>();
+			String id = null;
+			StringBuilder seq = new StringBuilder();
+			String line;
+			while (true) {
+				line = reader.readLine();
+				if ((line == null) || line.startsWith(">")) {
+					if (id != null) {
+						addSeq(rnaTypeMode ? "seq_" + (ids.size() - 1) : id, seq.toString(), rnaTypeMode);
+					}
+					if (line == null) {
+						break;
+					}
+					String[] fields = line.substring(1).trim().split("\\s+", 2);
+					id = fields[0];
+					if (id.isEmpty()) {
+						throw new IOException("Couldn't parse id line: " + line);
+					}
+					if (!ids.add(id)) {
+						throw new IOException("Duplicate seq id: " + id);
+					}
+					seq.setLength(0);
+					continue;
+				}
+				line = line.trim();
+				if (line.startsWith("#")) {
+					continue;
+				}
+				if (id == null) {
+					throw new IOException("Not a FASTA file: " + fastaFile);
+				}
+				seq.append(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private void addSeq(String id, String seq, boolean rnaTypeMode) throws IOException {
+		seq = seq.toUpperCase();
+		if (rnaTypeMode) {
+			seq = seq.replace('U', 'T');
+			seq = seq + FW_BW_DELIM + reverseComplement(seq);
+		}
+		seq = seq.replace('_', 'N').replace('.', 'N');
+		if (!seq.matches("^[A-Z@]+$")) {
+			throw new IOException("Invalid non [A-Z@]-char in seq: '" + seq + "'");
+		}
+		if (seq.length() < KMER_LEN) {
+			System.err.println("Warning: discarding seq shorter than kmer length: " + seq);
+			return;
+		}
+		if (seq.length() < MIN_VALID_SEQ_LEN) {
+			System.err.println("Warning: discarding seq shorter than minimum valid seq len: " + seq);
+			return;
+		}
+		seqIds.add(id);
+		seqs.add(seq.getBytes("US-ASCII"));
+	}
+	
+	private static String reverseComplement(String seq) {
+		StringBuilder revcomp = new StringBuilder(seq.length());
+		for (int i=seq.length() - 1; i >= 0; i--) {
+			switch (seq.charAt(i)) {
+				case 'A': revcomp.append('T');
+					break;
+				case 'C': revcomp.append('G');
+					break;
+				case 'G': revcomp.append('C');
+					break;
+				case 'T': revcomp.append('A');
+					break;
+				default: revcomp.append('N');
+			}
+		}
+		return revcomp.toString();
+	}
+	
+	/* Returns the uncompressed database, see "mirtrace-db-generator.py". */
+	byte[] build(int numThreads) throws IOException {
+		ByteArrayOutputStream refSeqBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream refSeqIdBytes = new ByteArrayOutputStream();
+		for (int i=0; i < seqs.size(); i++) {
+			refSeqBytes.write(seqs.get(i));
+			refSeqBytes.write(DNASequenceDatabase.ENDCHAR_BYTE);
+			refSeqIdBytes.write(seqIds.get(i).getBytes("US-ASCII"));
+			refSeqIdBytes.write('\n');
+		}
+		byte[] refSeq = refSeqBytes.toByteArray();
+		int numKmers = 1 << (2 * KMER_LEN);
+		
+		/* Count the kmers of each chunk, then turn the counts into the 
+		 * first slot of each (kmer, chunk) pair. */
+		int chunkCount = Math.max(1, Math.min(numThreads, refSeq.length / (1 << 16)));
+		final int[][] slots = new int[chunkCount][];
+		ExecutorService pool = Executors.newFixedThreadPool(chunkCount);
+		try {
+			List<Future<int[]>> counts = new ArrayList<Future<int[]>>();
+			for (int c=0; c < chunkCount; c++) {
+				counts.add(pool.submit(new KmerChunkTask(refSeq, chunkStart(c, chunkCount, refSeq.length), 
+						chunkStart(c + 1, chunkCount, refSeq.length), null)));
+			}
+			for (int c=0; c < chunkCount; c++) {
+				slots[c] = get(counts.get(c));
+			}
+			int[] listStarts = new int[numKmers];
+			int[] listLengths = new int[numKmers];
+			int posCount = 0;
+			for (int kmer=0; kmer < numKmers; kmer++) {
+				listStarts[kmer] = posCount;
+				for (int c=0; c < chunkCount; c++) {
+					int count = slots[c][kmer];
+					slots[c][kmer] = posCount;
+					posCount += count;
+				}
+				listLengths[kmer] = posCount - listStarts[kmer];
+			}
+			
+			/* Fill in the positions. */
+			int[] posList = new int[posCount];
+			List<Future<int[]>> fills = new ArrayList<Future<int[]>>();
+			for (int c=0; c < chunkCount; c++) {
+				fills.add(pool.submit(new KmerChunkTask(refSeq, chunkStart(c, chunkCount, refSeq.length), 
+						chunkStart(c + 1, chunkCount, refSeq.length), new PositionSink(slots[c], posList))));
+			}
+			for (Future<int[]> fill : fills) {
+				get(fill);
+			}
+			
+			/* Write the database. The last entry of each list is negated. */
+			ByteArrayOutputStream db = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(db);
+			int kmerListEntries = 0;
+			for (int kmer=0; kmer < numKmers; kmer++) {
+				if (listLengths[kmer] > 0) {
+					kmerListEntries += 2;
+					int last = listStarts[kmer] + listLengths[kmer] - 1;
+					posList[last] = -posList[last];
+				}
+			}
+			out.writeInt(refSeq.length);
+			out.writeInt(refSeqIdBytes.size());
+			out.writeInt(4 * kmerListEntries);
+			out.writeInt(4 * posList.length);
+			out.write(refSeq);
+			refSeqIdBytes.writeTo(out);
+			for (int kmer=0; kmer < numKmers; kmer++) {
+				if (listLengths[kmer] > 0) {
+					out.writeInt(kmer);
+					out.writeInt(listStarts[kmer]);
+				}
+			}
+			for (int pos : posList) {
+				out.writeInt(pos);
+			}
+			out.flush();
+			return db.toByteArray();
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private static int chunkStart(int chunk, int chunkCount, int length) {
+		return (int) ((long) length * chunk / chunkCount);
+	}
+	
+	private static int[] get(Future<int[]> future) throws IOException {
+		try {
+			return SearchEngines.await(future);
+		} catch (DBNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/* Where the positions of a chunk's kmers go: next slot of each kmer. */
+	static class PositionSink {
+		final int[] nextSlots;
+		final int[] posList;
+		
+		PositionSink(int[] nextSlots, int[] posList) {
+			this.nextSlots = nextSlots;
+			this.posList = posList;
+		}
+	}
+	
+	/* Visits the kmers (of A, C, G and T only) starting in one chunk of 
+	 * the reference. Without a sink, returns the number of occurrences of
+	 * each kmer. With one, writes their positions. */
+	static class KmerChunkTask implements Callable<int[]> {
+		final byte[] refSeq;
+		final int start;
+		final int end;
+		final PositionSink sink;
+		
+		KmerChunkTask(byte[] refSeq, int start, int end, PositionSink sink) {
+			this.refSeq = refSeq;
+			this.start = start;
+			this.end = end;
+			this.sink = sink;
+		}
+		
+		@Override
+		public int[] call() {
+			final int kmerMask = (1 << (2 * KMER_LEN)) - 1;
+			int[] counts = sink == null ? new int[1 << (2 * KMER_LEN)] : null;
+			int kmer = 0;
+			int validBases = 0; /* Number of consecutive bases ending at i. */
+			int last = Math.min(end + KMER_LEN - 1, refSeq.length);
+			for (int i=start; i < last; i++) {
+				int code;
+				switch (refSeq[i]) {
+					case 'A': code = 0;
+						break;
+					case 'C': code = 1;
+						break;
+					case 'G': code = 2;
+						break;
+					case 'T': code = 3;
+						break;
+					default: code = -1;
+				}
+				if (code < 0) {
+					validBases = 0;
+					continue;
+				}
+				kmer = ((kmer << 2) | code) & kmerMask;
+				validBases++;
+				if (validBases >= KMER_LEN) {
+					int pos = i - (KMER_LEN - 1);
+					if (sink == null) {
+						counts[kmer]++;
+					} else {
+						sink.posList[sink.nextSlots[kmer]++] = pos;
+					}
+				}
+			}
+			return counts;
+		}
+	}
+	
+	/**
+	 * Builds a database from a FASTA file and writes it to 'dbFile', 
+	 * together with its index file in 'indexDir'.
+	 */
+	static void buildDatabase(File fastaFile, File dbFile, boolean rnaTypeMode, File indexDir, 
+			int numThreads) throws IOException {
+		DatabaseBuilder builder = new DatabaseBuilder();
+		builder.readFASTA(fastaFile, rnaTypeMode);
+		byte[] db = builder.build(numThreads);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream gz = new GZIPOutputStream(compressed);
+		gz.write(db);
+		gz.close();
+		OutputStream out = new FileOutputStream(dbFile);
+		try {
+			compressed.writeTo(out);
+		} finally {
+			out.close();
+		}
+		/* Loading the database writes its index file. */
+		new DNASequenceDatabase(new ByteArrayInputStream(compressed.toByteArray()), dbFile.getName(), indexDir);
+		System.err.println("Database with " + builder.seqs.size() + " sequences written to " + 
+				dbFile.getAbsolutePath());
+	}
+
+}
@@ -23,6 +23,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.SequenceInputStream;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 
@@ -56,4 +59,42 @@ class DatabaseLoader {
 		}
 		throw new RuntimeException("INTERNAL ERROR: Could not find " + dbName + ".");
 	}
+	
+	/* Loads and parses a database (not concatenated) in 'pool'. */
+	static Future<DNASequenceDatabase> submit(ExecutorService pool, final String dbName, final Config config, 
+			final Queue<String> warnings, final String customDBNotFoundMessage) {
+		return pool.submit(new Callable<DNASequenceDatabase>() {
+			@Override
+			public DNASequenceDatabase call() {
+				InputStream dbInputStream = loadDatabase(dbName, config, false, warnings, customDBNotFoundMessage);
+				return new DNASequenceDatabase(dbInputStream, dbName, config.getDBCacheDir());
+			}
+		});
+	}
+	
+	/* Overlays are small custom databases searched together with the 
+	 * database they are named after, e.g. "rnatype.hsa.mirna.overlay.db.gz" 
+	 * adds reference sequences to "rnatype.hsa.mirna.db.gz" without 
+	 * replacing it. They are only looked for in the custom database folder. */
+	static String overlayName(String dbName) {
+		return dbName.substring(0, dbName.length() - ".db.gz".length()) + ".overlay.db.gz";
+	}
+	
+	/* Loads the overlay of 'dbName' in 'pool'. Returns null if there is none. */
+	static Future<DNASequenceDatabase> submitOverlay(ExecutorService pool, String dbName, final Config config) {
+		if (!config.hasCustomDatabases()) {
+			return null;
+		}
+		final String overlayName = overlayName(dbName);
+		final File overlayFile = new File(config.getCustomDBFolder(), overlayName);
+		if (!overlayFile.isFile()) {
+			return null;
+		}
+		return pool.submit(new Callable<DNASequenceDatabase>() {
+			@Override
+			public DNASequenceDatabase call() throws FileNotFoundException {
+				return new DNASequenceDatabase(new FileInputStream(overlayFile), overlayName, config.getDBCacheDir());
+			}
+		});
+	}
 }
@@ -0,0 +1,544 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * FM-index (BWT with occurrence counts and a sampled suffix array) of a 
+ * set of reference sequences, for references that are too large for a 
+ * DNASequenceDatabase: its kmer table and posting lists live on the heap
+ * and grow with the reference length, while the FM-index is a few bits 
+ * per base and is only ever memory-mapped.
+ * 
+ * The index is built offline from a FASTA file (see build), which takes
+ * a lot of memory (about 17 bytes per base) but only has to be done once.
+ * Both strands of every reference sequence are indexed. Characters other 
+ * than A, C, G, T (and U, read as T) split the sequences, so queries never
+ * match across them.
+ * 
+ * Searches are backward searches of the whole query, backtracking over 
+ * substitutions to allow up to a given number of mismatches. Matches are
+ * mapped back to reference sequences (numbered by their order in the 
+ * FASTA file) by walking the BWT to the nearest suffix array sample.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class FMIndex {
+	
+	/* File layout (native byte order, see BYTE_ORDER_MARKER):
+	 * 
+	 *   0   long    magic number
+	 *   8   int     format version
+	 *   12  int     byte order marker
+	 *   16  int     rows (text length, including the terminator)
+	 *   20  int     refSeqCount
+	 *   24  int     sampleCount
+	 *   28  int     (unused)
+	 *   32  int[4]  first row of each base (A, C, G, T)
+	 *   48  byte[16] checksum of the rest of the file
+	 *   64  block[] one block per BLOCK_ROWS rows, plus one:
+	 *                 int[4]  occurrences of each base before the block
+	 *                 int     samples before the block
+	 *                 int     (unused)
+	 *                 long[2] BWT bases (2 bits each, first row in the 
+	 *                         least significant bits)
+	 *                 long    rows whose BWT character isn't a base
+	 *                 long    rows that have a suffix array sample
+	 *       int[]   suffix array samples, in row order
+	 *       int[]   text offset of the first base of each refSeq
+	 */
+	static final long FILE_MAGIC = 0x6d69525472464d69L;
+	static final int FILE_FORMAT_VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int BLOCK_ROWS = 64;
+	static final int BLOCK_BYTES = 56;
+	private static final int BLOCK_OFFSET_SAMPLES = 16;
+	private static final int BLOCK_OFFSET_BWT = 24;
+	private static final int BLOCK_OFFSET_SPECIAL = 40;
+	private static final int BLOCK_OFFSET_SAMPLED = 48;
+	/* Every SA_SAMPLE_RATE:th text offset is sampled, which bounds the 
+	 * number of BWT steps needed to locate a row. */
+	static final int SA_SAMPLE_RATE = 32;
+	
+	/* Text symbols while building, in suffix sort order. */
+	private static final byte SYMBOL_TERMINATOR = 0;
+	private static final byte SYMBOL_SEPARATOR = 1;
+	private static final int SYMBOL_BASE_OFFSET = 2; /* A, C, G, T. */
+	private static final int ALPHABET_SIZE = 6;
+	
+	/* Each 2-bit base code repeated over a whole word. */
+	private static final long[] CODE_PATTERNS = {
+		0x0000000000000000L, 0x5555555555555555L, 0xaaaaaaaaaaaaaaaaL, 0xffffffffffffffffL
+	};
+	
+	/* Read with absolute get() methods only, so shared between threads. */
+	ByteBuffer blocks;
+	IntBuffer samples;
+	IntBuffer refSeqStarts;
+	int rows;
+	int refSeqCount;
+	/* First row of each base, i.e. the number of smaller text symbols. */
+	int[] baseStarts = new int[4];
+	HashCode checksum;
+	
+	private FMIndex() {
+	}
+	
+	/* Memory-maps an index file written by build(). */
+	static FMIndex load(File indexFile) throws IOException {
+		FMIndex index = new FMIndex();
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long fileSize = raf.length();
+			if (fileSize < HEADER_SIZE) {
+				throw new IOException("Not an FM-index file: " + indexFile);
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			header.order(ByteOrder.nativeOrder());
+			if ((header.getLong(0) != FILE_MAGIC) || 
+					(header.getInt(8) != FILE_FORMAT_VERSION) ||
+					(header.getInt(12) != DNASequenceDatabase.BYTE_ORDER_MARKER)) {
+				throw new IOException("Not an FM-index file, or built by another miRTrace " +
+						"version or on another platform: " + indexFile);
+			}
+			index.rows = header.getInt(16);
+			index.refSeqCount = header.getInt(20);
+			int sampleCount = header.getInt(24);
+			for (int c=0; c < 4; c++) {
+				index.baseStarts[c] = header.getInt(32 + 4 * c);
+			}
+			byte[] checksum = new byte[16];
+			for (int i=0; i < checksum.length; i++) {
+				checksum[i] = header.get(48 + i);
+			}
+			index.checksum = HashCode.fromBytes(checksum);
+			
+			long blocksSize = blocksSize(index.rows);
+			if (fileSize != HEADER_SIZE + blocksSize + 4L * (sampleCount + index.refSeqCount)) {
+				throw new IOException("Truncated FM-index file: " + indexFile);
+			}
+			index.blocks = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, blocksSize);
+			index.blocks.order(ByteOrder.nativeOrder());
+			long offset = HEADER_SIZE + blocksSize;
+			index.samples = intSection(channel, offset, sampleCount);
+			offset += 4L * sampleCount;
+			index.refSeqStarts = intSection(channel, offset, index.refSeqCount);
+		} finally {
+			/* The mappings stay valid after the file is closed. */
+			raf.close();
+		}
+		return index;
+	}
+	
+	private static IntBuffer intSection(FileChannel channel, long offset, int length) throws IOException {
+		ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * length);
+		return section.order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+	
+	private static long blocksSize(int rows) {
+		return ((long) rows / BLOCK_ROWS + 1) * BLOCK_BYTES;
+	}
+	
+	int getRefSeqCount() {
+		return refSeqCount;
+	}
+	
+	HashCode getChecksum() {
+		return checksum;
+	}
+	
+	/* Returns true if the first 'queryLen' bases of 'query' (packed as in 
+	 * DNASequenceDatabase.SearchContext.queryPacked) occur in a reference 
+	 * sequence with at most 'maxMismatches' mismatches. If 'hits' is not 
+	 * null, the ids of all such reference sequences are added to it 
+	 * (possibly repeated). */
+	boolean search(long[] query, int queryLen, int maxMismatches, IntList hits) {
+		return search(query, queryLen - 1, 0, rows, maxMismatches, hits);
+	}
+	
+	/* Extends the match of query[i+1..] (the BWT rows lo until hi) to the
+	 * left. The exact extension is followed before any mismatching one. */
+	private boolean search(long[] query, int i, int lo, int hi, int mismatchesLeft, IntList hits) {
+		while (i >= 0) {
+			int code = (int) (query[i >>> 5] >>> (2 * (i & 31))) & 3;
+			int exactLo = baseStarts[code] + occurrences(code, lo);
+			int exactHi = baseStarts[code] + occurrences(code, hi);
+			if (mismatchesLeft > 0) {
+				boolean found = false;
+				if (exactLo < exactHi) {
+					found = search(query, i - 1, exactLo, exactHi, mismatchesLeft, hits);
+				}
+				for (int c=0; c < 4 && (!found || hits != null); c++) {
+					if (c != code) {
+						int mismatchLo = baseStarts[c] + occurrences(c, lo);
+						int mismatchHi = baseStarts[c] + occurrences(c, hi);
+						if (mismatchLo < mismatchHi) {
+							found |= search(query, i - 1, mismatchLo, mismatchHi, mismatchesLeft - 1, hits);
+						}
+					}
+				}
+				return found;
+			}
+			if (exactLo >= exactHi) {
+				return false;
+			}
+			lo = exactLo;
+			hi = exactHi;
+			i--;
+		}
+		if (hits != null) {
+			for (int row=lo; row < hi; row++) {
+				hits.add(refSeqIndex(locate(row)));
+			}
+		}
+		return true;
+	}
+	
+	/* Number of occurrences of the base 'code' in the BWT before 'row'. */
+	int occurrences(int code, int row) {
+		int base = (row / BLOCK_ROWS) * BLOCK_BYTES;
+		int count = blocks.getInt(base + 4 * code);
+		int r = row % BLOCK_ROWS;
+		if (r != 0) {
+			long word = blocks.getLong(base + BLOCK_OFFSET_BWT);
+			if (r <= 32) {
+				count += countCode(word, code, r);
+			} else {
+				count += countCode(word, code, 32);
+				count += countCode(blocks.getLong(base + BLOCK_OFFSET_BWT + 8), code, r - 32);
+			}
+			if (code == 0) {
+				/* Rows without a base are stored as code 0 (A). */
+				long special = blocks.getLong(base + BLOCK_OFFSET_SPECIAL);
+				count -= Long.bitCount(special & ((1L << r) - 1));
+			}
+		}
+		return count;
+	}
+	
+	/* Number of the first 'n' (1 to 32) bases in 'word' that are 'code'. */
+	private static int countCode(long word, int code, int n) {
+		long x = word ^ CODE_PATTERNS[code];
+		long matches = ~(x | (x >>> 1)) & 0x5555555555555555L;
+		if (n < 32) {
+			matches &= (1L << (2 * n)) - 1;
+		}
+		return Long.bitCount(matches);
+	}
+	
+	/* Text offset of the suffix of 'row'. */
+	int locate(int row) {
+		int steps = 0;
+		while (true) {
+			int base = (row / BLOCK_ROWS) * BLOCK_BYTES;
+			int r = row % BLOCK_ROWS;
+			long sampled = blocks.getLong(base + BLOCK_OFFSET_SAMPLED);
+			if (((sampled >>> r) & 1) != 0) {
+				int sample = blocks.getInt(base + BLOCK_OFFSET_SAMPLES) + 
+						Long.bitCount(sampled & ((1L << r) - 1));
+				return samples.get(sample) + steps;
+			}
+			/* Rows without a BWT base are always sampled. */
+			long word = blocks.getLong(base + BLOCK_OFFSET_BWT + 8 * (r >>> 5));
+			int code = (int) (word >>> (2 * (r & 31))) & 3;
+			row = baseStarts[code] + occurrences(code, row);
+			steps++;
+		}
+	}
+	
+	/* Id of the reference sequence containing text offset 'offset'. */
+	int refSeqIndex(int offset) {
+		/* Binary search for the last refSeq starting at or before 'offset'. */
+		int lo = 0;
+		int hi = refSeqCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (refSeqStarts.get(mid) <= offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - 1;
+	}
+	
+	/* Builds an index of all sequences in a (possibly gzipped) FASTA file. */
+	static void build(File fastaFile, File indexFile) throws IOException {
+		IntList refSeqStarts = new IntList();
+		byte[] text = new byte[1 << 20];
+		int textLength = 0;
+		InputStream is = new FileInputStream(fastaFile);
+		if (fastaFile.getName().endsWith(".gz")) {
+			is = new GZIPInputStream(is, 1 << 16);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+		try {
+			String line;
+			int refSeqStart = -1;
+			while (true) {
+				line = reader.readLine();
+				if ((line == null) || line.startsWith(">")) {
+					if (refSeqStart >= 0) {
+						/* Close the forward strand and append the reverse strand. */
+						int forwardEnd = textLength;
+						long reverseEnd = 2L * textLength - refSeqStart + 2;
+						if (reverseEnd >= Integer.MAX_VALUE - BLOCK_ROWS) {
+							throw new IOException("The references are too large for an FM-index.");
+						}
+						if (reverseEnd > text.length) {
+							text = Arrays.copyOf(text, (int) Math.min(
+									Math.max(reverseEnd, 2L * text.length), Integer.MAX_VALUE - BLOCK_ROWS));
+						}
+						text[textLength++] = SYMBOL_SEPARATOR;
+						for (int i=forwardEnd - 1; i >= refSeqStart; i--) {
+							byte symbol = text[i];
+							/* A <-> T and C <-> G. */
+							text[textLength++] = symbol == SYMBOL_SEPARATOR ? SYMBOL_SEPARATOR : 
+								(byte) (2 * SYMBOL_BASE_OFFSET + 3 - symbol);
+						}
+						text[textLength++] = SYMBOL_SEPARATOR;
+					}
+					if (line == null) {
+						break;
+					}
+					refSeqStart = textLength;
+					refSeqStarts.add(refSeqStart);
+					continue;
+				}
+				if (refSeqStart < 0) {
+					throw new IOException("Not a FASTA file: " + fastaFile);
+				}
+				if ((long) textLength + line.length() >= text.length) {
+					text = Arrays.copyOf(text, (int) Math.min(
+							Math.max((long) textLength + line.length() + 1, 2L * text.length), 
+							Integer.MAX_VALUE - BLOCK_ROWS));
+					if ((long) textLength + line.length() >= text.length) {
+						throw new IOException("The references are too large for an FM-index.");
+					}
+				}
+				for (int i=0; i < line.length(); i++) {
+					text[textLength++] = symbolOf(line.charAt(i));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if (textLength == text.length) {
+			text = Arrays.copyOf(text, textLength + 1);
+		}
+		text[textLength] = SYMBOL_TERMINATOR;
+		int rows = textLength + 1;
+		
+		int[] sa = new int[rows];
+		int[] scratch = new int[rows];
+		buildSuffixArray(text, rows, sa, scratch);
+		writeIndexFile(indexFile, text, sa, rows, scratch, refSeqStarts);
+	}
+	
+	private static byte symbolOf(char ch) {
+		switch (ch) {
+			case 'A': case 'a':
+				return SYMBOL_BASE_OFFSET;
+			case 'C': case 'c':
+				return SYMBOL_BASE_OFFSET + 1;
+			case 'G': case 'g':
+				return SYMBOL_BASE_OFFSET + 2;
+			case 'T': case 't':
+			case 'U': case 'u':
+				return SYMBOL_BASE_OFFSET + 3;
+			default:
+				return SYMBOL_SEPARATOR;
+		}
+	}
+	
+	/* Suffix sorting by prefix doubling: each round sorts the suffixes by 
+	 * twice as many symbols as the previous, using the ranks of the 
+	 * previous round as keys of two radix sort passes. Separators are all
+	 * equal, so the order of the rows starting with one is arbitrary, but
+	 * the terminator is unique, which makes the ranks unique eventually. */
+	private static void buildSuffixArray(byte[] text, int n, int[] sa, int[] rank) {
+		int[] tmp = new int[n];
+		int[] counts = new int[Math.max(n, ALPHABET_SIZE) + 1];
+		for (int i=0; i < n; i++) {
+			counts[text[i] + 1]++;
+			rank[i] = text[i];
+		}
+		for (int c=1; c <= ALPHABET_SIZE; c++) {
+			counts[c] += counts[c - 1];
+		}
+		for (int i=0; i < n; i++) {
+			sa[counts[text[i]]++] = i;
+		}
+		int classes = ALPHABET_SIZE;
+		for (int k=1; k < n; k <<= 1) {
+			/* Order by the second key: suffixes without one come first. */
+			int p = 0;
+			for (int i=n - k; i < n; i++) {
+				tmp[p++] = i;
+			}
+			for (int i=0; i < n; i++) {
+				if (sa[i] >= k) {
+					tmp[p++] = sa[i] - k;
+				}
+			}
+			/* Stable counting sort by the first key. */
+			Arrays.fill(counts, 0, classes + 1, 0);
+			for (int i=0; i < n; i++) {
+				counts[rank[i] + 1]++;
+			}
+			for (int c=1; c <= classes; c++) {
+				counts[c] += counts[c - 1];
+			}
+			for (int i=0; i < n; i++) {
+				sa[counts[rank[tmp[i]]]++] = tmp[i];
+			}
+			/* New ranks. */
+			classes = 1;
+			tmp[sa[0]] = 0;
+			for (int i=1; i < n; i++) {
+				int a = sa[i - 1];
+				int b = sa[i];
+				int secondA = a + k < n ? rank[a + k] : -1;
+				int secondB = b + k < n ? rank[b + k] : -1;
+				if ((rank[a] != rank[b]) || (secondA != secondB)) {
+					classes++;
+				}
+				tmp[b] = classes - 1;
+			}
+			System.arraycopy(tmp, 0, rank, 0, n);
+			if (classes == n) {
+				break;
+			}
+		}
+	}
+	
+	/* 'samples' is scratch space of at least 'rows' ints. */
+	private static void writeIndexFile(File indexFile, byte[] text, int[] sa, int rows, 
+			int[] samples, IntList refSeqStarts) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			channel.position(HEADER_SIZE);
+			Hasher hasher = Hashing.murmur3_128().newHasher();
+			ByteBuffer out = ByteBuffer.allocate(BLOCK_BYTES << 14);
+			out.order(ByteOrder.nativeOrder());
+			int[] occurrences = new int[4];
+			int sampleCount = 0;
+			int blockCount = rows / BLOCK_ROWS + 1;
+			for (int block=0; block < blockCount; block++) {
+				long[] bwt = new long[2];
+				long special = 0;
+				long sampled = 0;
+				int blockSampleCount = sampleCount;
+				int[] blockOccurrences = occurrences.clone();
+				for (int r=0; r < BLOCK_ROWS; r++) {
+					int row = block * BLOCK_ROWS + r;
+					if (row >= rows) {
+						special |= 1L << r;
+						continue;
+					}
+					int offset = sa[row];
+					int symbol = offset == 0 ? SYMBOL_TERMINATOR : text[offset - 1];
+					if (symbol < SYMBOL_BASE_OFFSET) {
+						special |= 1L << r;
+					} else {
+						int code = symbol - SYMBOL_BASE_OFFSET;
+						bwt[r >>> 5] |= (long) code << (2 * (r & 31));
+						occurrences[code]++;
+					}
+					if ((symbol < SYMBOL_BASE_OFFSET) || (offset % SA_SAMPLE_RATE == 0)) {
+						sampled |= 1L << r;
+						samples[sampleCount++] = offset;
+					}
+				}
+				if (out.remaining() < BLOCK_BYTES) {
+					flush(channel, out, hasher);
+				}
+				for (int c=0; c < 4; c++) {
+					out.putInt(blockOccurrences[c]);
+				}
+				out.putInt(blockSampleCount);
+				out.putInt(0);
+				out.putLong(bwt[0]);
+				out.putLong(bwt[1]);
+				out.putLong(special);
+				out.putLong(sampled);
+			}
+			for (int i=0; i < sampleCount + refSeqStarts.size(); i++) {
+				if (out.remaining() < 4) {
+					flush(channel, out, hasher);
+				}
+				out.putInt(i < sampleCount ? samples[i] : refSeqStarts.get(i - sampleCount));
+			}
+			flush(channel, out, hasher);
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.order(ByteOrder.nativeOrder());
+			header.putLong(0, FILE_MAGIC);
+			header.putInt(8, FILE_FORMAT_VERSION);
+			header.putInt(12, DNASequenceDatabase.BYTE_ORDER_MARKER);
+			header.putInt(16, rows);
+			header.putInt(20, refSeqStarts.size());
+			header.putInt(24, sampleCount);
+			int baseStart = rows - (occurrences[0] + occurrences[1] + occurrences[2] + occurrences[3]);
+			for (int c=0; c < 4; c++) {
+				header.putInt(32 + 4 * c, baseStart);
+				baseStart += occurrences[c];
+			}
+			byte[] checksum = hasher.hash().asBytes();
+			for (int i=0; i < checksum.length; i++) {
+				header.put(48 + i, checksum[i]);
+			}
+			channel.write(header, 0);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer out, Hasher hasher) throws IOException {
+		hasher.putBytes(out.array(), 0, out.position());
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, meant to be cleared and reused 
+ * instead of reallocated.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class IntList {
+	int[] values;
+	int size = 0;
+	
+	IntList() {
+		this(16);
+	}
+	
+	IntList(int initialCapacity) {
+		values = new int[initialCapacity];
+	}
+	
+	void add(int value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+		values[size++] = value;
+	}
+	
+	int get(int index) {
+		return values[index];
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	boolean isEmpty() {
+		return size == 0;
+	}
+	
+	void clear() {
+		size = 0;
+	}
+	
+	/* Sorts the values in ascending order and removes duplicates. */
+	void sortAndDeduplicate() {
+		if (size < 2) {
+			return;
+		}
+		Arrays.sort(values, 0, size);
+		int unique = 1;
+		for (int i=1; i < size; i++) {
+			if (values[i] != values[unique - 1]) {
+				values[unique++] = values[i];
+			}
+		}
+		size = unique;
+	}
+	
+	int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
@@ -36,20 +36,17 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class MiRTrace {
 
 	Config config;
-	RNATypeSearchEngine rnaTypeSearchEngine;
-	CladeSearchEngine cladeSearchEngine;
+	SearchEngines searchEngines;
 	ConcurrentLinkedQueue<String> warnings;
 
+	/* Only starts loading, see SearchEngines. */
 	private void loadDatabases() {
-		try {
-			if (config.qcMode()) {
-				rnaTypeSearchEngine = new RNATypeSearchEngine(config, warnings);
-			}
-			cladeSearchEngine = new CladeSearchEngine(config, warnings);			
-		} catch (DBNotFoundException e) {
-			fail("ERROR: " + e.getMessage() + "\nAborting.");
-		}
-		
+		searchEngines = new SearchEngines(config, warnings);
+	}
+	
+	private void checkDatabases() {
+		searchEngines.awaitAll();
+		RNATypeSearchEngine rnaTypeSearchEngine = searchEngines.getRNATypeSearchEngine();
 		if (config.qcMode()) {
 			if (rnaTypeSearchEngine.getRefSeqCounts(Config.RNA_TYPE_MI_RNA) == 0) {
 				addWarning("The miRNA reference database has no entries for the current species.");
@@ -63,6 +60,23 @@ public class MiRTrace {
 		}
 	}
 	
+	/* Contaminant matches are counted as artifacts, so the artifact counts
+	 * are only comparable to those of other runs if the share is known. */
+	private void checkContaminants(List<AnalysisPipelineResult> pipelineResults) {
+		if (!config.qcMode() || (config.getContaminantDB() == null)) {
+			return;
+		}
+		Collections.sort(pipelineResults, new AnalysisPipelineResult.DisplayOrderComparator());
+		for (AnalysisPipelineResult r : pipelineResults) {
+			long contaminantReads = r.getStats().getRNATypeContaminantReads();
+			if (contaminantReads > 0) {
+				long artifactReads = r.getStats().getRNATypeStats()[Config.RNA_TYPE_ART_RNA];
+				addWarning("Sample '" + r.getVerbosename() + "': " + contaminantReads + " of the " + 
+						artifactReads + " artifact reads only matched the contaminant database.");
+			}
+		}
+	}
+	
 	public MiRTrace(String[] args) {
 		warnings = new ConcurrentLinkedQueue<String>();
 		config = new Config(args);
@@ -91,6 +105,8 @@ public class MiRTrace {
 			}
 		}		
 		List<AnalysisPipelineResult> pipelineResults = runAnalysis();
+		checkDatabases();
+		checkContaminants(pipelineResults);
 		writeResults(pipelineResults);
 		for (String w : warnings) {
 			System.err.println("WARNING: " + w);
@@ -138,7 +154,7 @@ public class MiRTrace {
 	}
 	
 	List<AnalysisPipelineResult> runAnalysis() {
-		AnalysisTaskManager taskMgr = new AnalysisTaskManager(config, rnaTypeSearchEngine, cladeSearchEngine);
+		AnalysisTaskManager taskMgr = new AnalysisTaskManager(config, searchEngines);
 		for (AnalysisTask task : config.getAnalysisTasks()) {
 			taskMgr.add(task);
 		}
@@ -148,8 +164,8 @@ public class MiRTrace {
 	void writeResults(List<AnalysisPipelineResult> pipelineResults) {
 		Collections.sort(pipelineResults, new AnalysisPipelineResult.DisplayOrderComparator());
 		ArrayList<String> warningsList = new ArrayList<String>(warnings);
-		MiRTraceReport report = new MiRTraceReport(rnaTypeSearchEngine, 
-				cladeSearchEngine, pipelineResults, config, warningsList);
+		MiRTraceReport report = new MiRTraceReport(searchEngines.getRNATypeSearchEngine(), 
+				searchEngines.getCladeSearchEngine(), pipelineResults, config, warningsList);
 		
 		/*
 		 * Write JSON results.
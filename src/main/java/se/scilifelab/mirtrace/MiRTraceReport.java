@@ -91,7 +91,7 @@ class MiRTraceReport {
 		//adapterSeqs = conf.getAdapterSequences();
 		this.warnings = warnings;
 		mirtraceVersion = conf.getVersion();
-		prepareForExport();
+		prepareForExport(cladeSearchEngine);
 		qcCriteriaVerbose.put("phred", Config.QC_WARNING_CRITERIA_VERBOSE_PHRED);
 		qcCriteriaVerbose.put("length", Config.QC_WARNING_CRITERIA_VERBOSE_LENGTH);
 		qcCriteriaVerbose.put("qc", Config.QC_WARNING_CRITERIA_VERBOSE_QC);
@@ -99,9 +99,9 @@ class MiRTraceReport {
 		qcCriteriaVerbose.put("complexity", Config.QC_WARNING_CRITERIA_VERBOSE_COMPLEXITY);
 	}
 	
-	void prepareForExport() {
+	void prepareForExport(CladeSearchEngine cladeSearchEngine) {
 		for (AnalysisPipelineResult r : results) {
-			r.getStats().prepareForExport();
+			r.getStats().prepareForExport(cladeSearchEngine);
 		}
 	}
 
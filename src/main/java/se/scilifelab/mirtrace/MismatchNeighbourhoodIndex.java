@@ -0,0 +1,189 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+/**
+ * Answers "is the query contained in a reference sequence with at most one
+ * mismatch, and with how many?" using hash lookups instead of seeding and
+ * verification. Meant for small databases, such as miRNA databases.
+ * 
+ * Every reference substring of a length between MIN_ALLOWED_SEQ_LEN and 
+ * MAX_QUERY_LEN is stored, 2-bit packed together with its length, in an 
+ * open addressing hash set:
+ * 
+ * - Substrings consisting of A, C, G and T only are stored as they are, 
+ *   in 'exactKeys'.
+ * - Substrings with exactly one other character (such as the '@' padding
+ *   between the arms of the miRNA reference sequences) mismatch every query
+ *   at that position, so all four variants are stored in 'oneMismatchKeys'.
+ * - Substrings with more such characters cannot match.
+ * 
+ * A query then matches exactly if it is in 'exactKeys', and with one 
+ * mismatch if it is in 'oneMismatchKeys' or one of its 3 * L single-base 
+ * variants is in 'exactKeys'. This is the same criterion as 
+ * DNASequenceDatabase.search() with up to one mismatch, since queries of
+ * at least MIN_ALLOWED_SEQ_LEN bases always have an exact seed kmer.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class MismatchNeighbourhoodIndex {
+	
+	/* Longer queries don't fit in a key and must be searched for in the 
+	 * database. */
+	static final int MAX_QUERY_LEN = 28;
+	static final int NO_MATCH = -1;
+	
+	private static final int LENGTH_SHIFT = 2 * MAX_QUERY_LEN;
+	/* Marks used slots, since a key may be zero. */
+	private static final long SLOT_USED = 1L << 62;
+	
+	long[] exactKeys;
+	long[] oneMismatchKeys;
+	
+	/**
+	 * Builds the index, or returns null if the database has more than 
+	 * 'maxRefSeqBases' bases.
+	 */
+	static MismatchNeighbourhoodIndex build(DNASequenceDatabase db, int maxRefSeqBases) {
+		if (db.refSeq.length() > maxRefSeqBases) {
+			return null;
+		}
+		MismatchNeighbourhoodIndex index = new MismatchNeighbourhoodIndex();
+		/* First pass counts the keys, second pass stores them. */
+		long[] counts = index.addSubstrings(db, true);
+		index.exactKeys = new long[tableSize(counts[0])];
+		index.oneMismatchKeys = new long[tableSize(counts[1])];
+		index.addSubstrings(db, false);
+		return index;
+	}
+	
+	private static int tableSize(long keyCount) {
+		return Integer.highestOneBit((int) Math.max(keyCount, 1)) * 4;
+	}
+	
+	private long[] addSubstrings(DNASequenceDatabase db, boolean countOnly) {
+		long[] counts = new long[2];
+		int refSeqStart = 0;
+		for (int refSeqId=0; refSeqId < db.getRefSeqCount(); refSeqId++) {
+			int refSeqEnd = db.refSeqEndcharLocations.get(refSeqId);
+			for (int start=refSeqStart; start + Config.MIN_ALLOWED_SEQ_LEN <= refSeqEnd; start++) {
+				long packed = 0;
+				int otherPos = -1;
+				for (int len=1; len <= MAX_QUERY_LEN && start + len <= refSeqEnd; len++) {
+					int code = encodeBase(db.refSeq.baseAt(start + len - 1));
+					if (code < 0) {
+						if (otherPos >= 0) {
+							/* Two or more mismatches for any query. */
+							break;
+						}
+						otherPos = len - 1;
+						code = 0;
+					}
+					packed = (packed << 2) | code;
+					if (len < Config.MIN_ALLOWED_SEQ_LEN) {
+						continue;
+					}
+					long key = key(packed, len);
+					if (otherPos < 0) {
+						counts[0]++;
+						if (!countOnly) {
+							add(exactKeys, key);
+						}
+					} else {
+						counts[1] += 4;
+						if (!countOnly) {
+							long baseBit = 1L << (2 * (len - 1 - otherPos));
+							for (long b=0; b < 4; b++) {
+								add(oneMismatchKeys, key | (b * baseBit));
+							}
+						}
+					}
+				}
+			}
+			refSeqStart = refSeqEnd + 1;
+		}
+		return counts;
+	}
+	
+	private static int encodeBase(byte base) {
+		switch (base) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+	
+	private static long key(long packed, int len) {
+		return ((long) len << LENGTH_SHIFT) | packed;
+	}
+	
+	private static int findSlot(long[] table, long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int mask = table.length - 1;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (table[slot] != 0 && table[slot] != (key | SLOT_USED)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private static void add(long[] table, long key) {
+		table[findSlot(table, key)] = key | SLOT_USED;
+	}
+	
+	private static boolean contains(long[] table, long key) {
+		return table[findSlot(table, key)] != 0;
+	}
+	
+	/* True if queries of this length can be answered by the index. */
+	static boolean canSearch(int seqLen) {
+		return seqLen >= Config.MIN_ALLOWED_SEQ_LEN && seqLen <= MAX_QUERY_LEN;
+	}
+	
+	/**
+	 * RETURNS
+	 * 		the smallest number of mismatches (0 or 1) with which 'seq' is 
+	 * 		contained in a reference sequence, or NO_MATCH. The query is 
+	 * 		2-bit packed with the first base in the most significant bits 
+	 * 		(see PackedSeqIndex.prefixKey) and must satisfy canSearch(seqLen).
+	 */
+	int minMismatches(long packed, int seqLen) {
+		long key = key(packed, seqLen);
+		if (contains(exactKeys, key)) {
+			return 0;
+		}
+		if (contains(oneMismatchKeys, key)) {
+			return 1;
+		}
+		for (int i=0; i < seqLen; i++) {
+			int shift = 2 * (seqLen - 1 - i);
+			long base = (packed >>> shift) & 3;
+			for (long b=0; b < 4; b++) {
+				if (b != base && contains(exactKeys, key ^ ((base ^ b) << shift))) {
+					return 1;
+				}
+			}
+		}
+		return NO_MATCH;
+	}
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies new unique sequences while the samples are still being parsed
+ * (--online-classification).
+ * 
+ * The hash map of each pipeline publishes every new sequence that passes
+ * the quality filter to a bounded queue, together with the 
+ * {@link SequenceClassificationTable} of the hash map. The queue is a ring
+ * of preallocated slots that the packed sequences are copied into, so 
+ * publishing allocates nothing. It is drained by tasks in the classification
+ * pool shared by all pipelines (see 
+ * AnalysisTaskManager.getClassificationPool()), so no threads are added; 
+ * at most --num-threads drain tasks run at a time. Each result is put into
+ * the table at the number of its sequence, where 
+ * AnalysisPipeline.processCompletedHashmap() picks it up instead of 
+ * classifying the sequence again.
+ * 
+ * Sequences published while the databases are still loading are kept in 
+ * the queue, and drain tasks are started by the first sequence published 
+ * once loading has finished, so pool threads never wait for the databases.
+ * 
+ * Publishing never blocks parsing. Sequences that don't fit into the 
+ * queue, or whose table has been closed by the time they are dequeued, are
+ * not classified here; processCompletedHashmap() classifies them as usual.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class OnlineClassifier {
+	
+	static final int QUEUE_SIZE = Config.ONLINE_CLASSIFICATION_QUEUE_SIZE; /* Must be a power of 2. */
+	static final int KEY_WORDS = DNASequenceHashMap.BUCKET_SIZE;
+	
+	/* The search state of one drain task, reused by later tasks. */
+	private class Worker {
+		SequenceClassifier classifier = new SequenceClassifier(config, 
+				taskManager.searchEngines.getRNATypeSearchEngine(), 
+				taskManager.searchEngines.getCladeSearchEngine(), 
+				taskManager.getClassificationCache(), 
+				taskManager.getPersistentClassificationCache());
+		DNASequenceHashMapEntry[] batch = new DNASequenceHashMapEntry[Config.SEARCH_BATCH_SIZE];
+		SequenceClassificationTable[] tables = new SequenceClassificationTable[Config.SEARCH_BATCH_SIZE];
+		boolean[] seqOK = new boolean[Config.SEARCH_BATCH_SIZE];
+		SequenceClassification[] classifications = new SequenceClassification[Config.SEARCH_BATCH_SIZE];
+		
+		Worker() {
+			for (int b=0; b < batch.length; b++) {
+				batch[b] = new DNASequenceHashMapEntry();
+			}
+			Arrays.fill(seqOK, true);
+		}
+	}
+	
+	private Config config;
+	private AnalysisTaskManager taskManager;
+	
+	/* The queue, guarded by queueLock. Slot i holds a sequence packed into 
+	 * queuedSeqs[i*KEY_WORDS...], its length, its number and its table. */
+	private final Object queueLock = new Object();
+	private final long[] queuedSeqs = new long[QUEUE_SIZE * KEY_WORDS];
+	private final byte[] queuedLengths = new byte[QUEUE_SIZE];
+	private final int[] queuedSeqNums = new int[QUEUE_SIZE];
+	private final SequenceClassificationTable[] queuedTables = new SequenceClassificationTable[QUEUE_SIZE];
+	private int queueHead = 0; /* Slot of the oldest queued sequence. */
+	private int queueSize = 0;
+	
+	private ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+	private AtomicInteger runningDrainTasks = new AtomicInteger();
+	private volatile boolean shutdown = false;
+	private AtomicLong classifiedCount = new AtomicLong();
+	private AtomicLong droppedCount = new AtomicLong();
+	
+	OnlineClassifier(Config config, AnalysisTaskManager taskManager) {
+		this.config = config;
+		this.taskManager = taskManager;
+	}
+	
+	/** Returns a listener for a hash map, which queues the new 
+	 * sequences of the hash map to be classified into 'table'. */
+	DNASequenceHashMap.NewSequenceListener newListener(final SequenceClassificationTable table) {
+		return new DNASequenceHashMap.NewSequenceListener() {
+			/* Called by the parsing thread, see DNASequenceHashMap.putSequence(). */
+			@Override
+			public void newSequence(int seqNum, long[] packedSeq, int seqLen) {
+				enqueue(table, seqNum, packedSeq, seqLen);
+			}
+		};
+	}
+	
+	private void enqueue(SequenceClassificationTable table, int seqNum, long[] packedSeq, int seqLen) {
+		/* Sequences failing the quality filter are never classified. */
+		if ((seqLen < Config.MIN_ALLOWED_SEQ_LEN) || !AnalysisPipeline.validComplexity(packedSeq, seqLen)) {
+			return;
+		}
+		boolean queued;
+		synchronized (queueLock) {
+			queued = queueSize < QUEUE_SIZE;
+			if (queued) {
+				int slot = (queueHead + queueSize) & (QUEUE_SIZE - 1);
+				System.arraycopy(packedSeq, 0, queuedSeqs, slot * KEY_WORDS, KEY_WORDS);
+				queuedLengths[slot] = (byte) seqLen;
+				queuedSeqNums[slot] = seqNum;
+				queuedTables[slot] = table;
+				queueSize++;
+			}
+		}
+		if (!queued) {
+			droppedCount.incrementAndGet();
+		} else if (taskManager.searchEngines.isLoaded()) {
+			startDrainTask();
+		}
+	}
+	
+	/* Moves up to Config.SEARCH_BATCH_SIZE queued sequences into the batch 
+	 * of 'worker' and returns their number, or -1 if the queue is empty. 
+	 * Sequences of closed tables are dropped. */
+	private int dequeueBatch(Worker worker) {
+		int batchSize = 0;
+		int dropped = 0;
+		synchronized (queueLock) {
+			if (queueSize == 0) {
+				return -1;
+			}
+			while ((batchSize < Config.SEARCH_BATCH_SIZE) && (queueSize > 0)) {
+				int slot = queueHead;
+				SequenceClassificationTable table = queuedTables[slot];
+				queuedTables[slot] = null;
+				queueHead = (queueHead + 1) & (QUEUE_SIZE - 1);
+				queueSize--;
+				if (table.isClosed()) {
+					dropped++;
+					continue;
+				}
+				worker.batch[batchSize].setPackedSeq(queuedSeqs, slot * KEY_WORDS, queuedLengths[slot]);
+				worker.batch[batchSize].seqNum = queuedSeqNums[slot];
+				worker.tables[batchSize] = table;
+				batchSize++;
+			}
+		}
+		droppedCount.addAndGet(dropped);
+		return batchSize;
+	}
+	
+	private boolean isQueueEmpty() {
+		synchronized (queueLock) {
+			return queueSize == 0;
+		}
+	}
+	
+	/* Starts a drain task in the classification pool, unless 
+	 * --num-threads of them are running already. */
+	private void startDrainTask() {
+		while (!shutdown) {
+			int running = runningDrainTasks.get();
+			if (running >= config.getNumThreads()) {
+				return;
+			}
+			if (runningDrainTasks.compareAndSet(running, running + 1)) {
+				taskManager.getClassificationPool().execute(new Runnable() {
+					@Override
+					public void run() {
+						drainQueue();
+					}
+				});
+				return;
+			}
+		}
+	}
+	
+	/* Classifies up to Config.CLASSIFICATION_RANGE_SIZE queued sequences, 
+	 * Config.SEARCH_BATCH_SIZE at a time, then hands the pool thread back, 
+	 * so that the classification of completed samples is not held up. */
+	private void drainQueue() {
+		try {
+			Worker worker = idleWorkers.poll();
+			if (worker == null) {
+				worker = new Worker();
+			}
+			int drained = 0;
+			while (!shutdown && (drained < Config.CLASSIFICATION_RANGE_SIZE)) {
+				int batchSize = dequeueBatch(worker);
+				if (batchSize < 0) {
+					break;
+				}
+				worker.classifier.classifyBatch(worker.batch, worker.seqOK, batchSize, worker.classifications);
+				for (int b=0; b < batchSize; b++) {
+					worker.tables[b].put(worker.batch[b].seqNum, worker.classifications[b]);
+					worker.tables[b] = null;
+				}
+				classifiedCount.addAndGet(batchSize);
+				drained += batchSize;
+			}
+			idleWorkers.add(worker);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			taskManager.fail("ERROR: Online classification failed, aborting.");
+		} finally {
+			synchronized (this) {
+				if (runningDrainTasks.decrementAndGet() == 0) {
+					notifyAll();
+				}
+			}
+		}
+		/* Sequences queued after the last poll are not left behind. */
+		if (!isQueueEmpty()) {
+			startDrainTask();
+		}
+	}
+	
+	/* Stops classifying, dropping any sequences still queued, and waits 
+	 * for the running drain tasks to finish. */
+	void shutdown() {
+		shutdown = true;
+		synchronized (this) {
+			while (runningDrainTasks.get() > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		synchronized (queueLock) {
+			droppedCount.addAndGet(queueSize);
+			Arrays.fill(queuedTables, null);
+			queueSize = 0;
+		}
+	}
+	
+	long getClassifiedCount() {
+		return classifiedCount.get();
+	}
+	
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.nio.LongBuffer;
+
+/**
+ * The concatenated reference sequences of a database, 2-bit packed.
+ * 
+ * Base i is stored in bits 2 * (i % 32) and up of word i / 32 (A=0, C=1,
+ * G=2, T=3). Positions holding anything else are stored as 0 and marked in
+ * one of two bitmaps (bit i % 64 of word i / 64): 'endchars' for the '$' 
+ * separating the reference sequences, 'others' for remaining characters 
+ * (such as 'N' or the '@' padding of the miRNA databases), which mismatch 
+ * every query base.
+ * 
+ * This lets alignments be verified 32 bases at a time: XOR the packed 
+ * query and reference, fold each 2-bit difference to one bit and count
+ * the bits.
+ * 
+ * The words are held in buffers, either wrapped heap arrays or views of a
+ * memory-mapped index file. Only absolute get() methods are used, so they 
+ * are safe to share between threads.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class PackedRefSeq {
+	
+	static final int NO_MATCH = -1;
+	private static final long EVEN_BITS = 0x5555555555555555L;
+	
+	final int length;
+	final LongBuffer bases;
+	final LongBuffer endchars;
+	final LongBuffer others;
+	
+	PackedRefSeq(int length, LongBuffer bases, LongBuffer endchars, LongBuffer others) {
+		this.length = length;
+		this.bases = bases;
+		this.endchars = endchars;
+		this.others = others;
+	}
+	
+	static int baseWords(int length) {
+		return (length + 31) / 32;
+	}
+	
+	static int bitmapWords(int length) {
+		return (length + 63) / 64;
+	}
+	
+	/* Packs an ASCII sequence. */
+	static PackedRefSeq pack(byte[] seq) {
+		long[] bases = new long[baseWords(seq.length)];
+		long[] endchars = new long[bitmapWords(seq.length)];
+		long[] others = new long[bitmapWords(seq.length)];
+		for (int i=0; i < seq.length; i++) {
+			int code = encodeBase(seq[i]);
+			if (code >= 0) {
+				bases[i >>> 5] |= (long) code << (2 * (i & 31));
+			} else if (seq[i] == DNASequenceDatabase.ENDCHAR_BYTE) {
+				endchars[i >>> 6] |= 1L << i;
+			} else {
+				others[i >>> 6] |= 1L << i;
+			}
+		}
+		return new PackedRefSeq(seq.length, LongBuffer.wrap(bases), LongBuffer.wrap(endchars), 
+				LongBuffer.wrap(others));
+	}
+	
+	static int encodeBase(byte base) {
+		switch (base) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+	
+	int length() {
+		return length;
+	}
+	
+	boolean isEndchar(int i) {
+		return (endchars.get(i >>> 6) & (1L << i)) != 0;
+	}
+	
+	/* RETURNS 'A', 'C', 'G', 'T', ENDCHAR_BYTE or 'N' (for any other character). */
+	byte baseAt(int i) {
+		if (isEndchar(i)) {
+			return DNASequenceDatabase.ENDCHAR_BYTE;
+		} else if ((others.get(i >>> 6) & (1L << i)) != 0) {
+			return 'N';
+		}
+		return (byte) "ACGT".charAt((int) (bases.get(i >>> 5) >>> (2 * (i & 31))) & 3);
+	}
+	
+	/* The 64 bits starting at bit 'bitPos' (bits past the end are 0). */
+	private static long bitsAt(LongBuffer words, int bitPos) {
+		int w = bitPos >>> 6;
+		int s = bitPos & 63;
+		long bits = words.get(w) >>> s;
+		if (s != 0 && w + 1 < words.limit()) {
+			bits |= words.get(w + 1) << (64 - s);
+		}
+		return bits;
+	}
+	
+	/* Like bitsAt(), for a packed query. */
+	static long bitsAt(long[] words, int bitPos) {
+		int w = bitPos >>> 6;
+		int s = bitPos & 63;
+		long bits = words[w] >>> s;
+		if (s != 0 && w + 1 < words.length) {
+			bits |= words[w + 1] << (64 - s);
+		}
+		return bits;
+	}
+	
+	/* Spreads the low 32 bits of 'x' to the even bit positions. */
+	private static long spreadToEvenBits(long x) {
+		x &= 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2)) & 0x3333333333333333L;
+		x = (x | (x << 1)) & EVEN_BITS;
+		return x;
+	}
+	
+	/**
+	 * Compares 'len' bases of a packed query (packed like the reference, 
+	 * starting at base 'queryStart') with the reference starting at 'k'.
+	 * 
+	 * RETURNS
+	 * 		the number of mismatches, or NO_MATCH if there are more than 
+	 * 		'maxMismatches' or a reference sequence ends first.
+	 */
+	int countMismatches(long[] query, int queryStart, int len, int maxMismatches, int k) {
+		if (k + len > length) {
+			for (int i=k; i < length; i++) {
+				if (isEndchar(i)) {
+					return NO_MATCH;
+				}
+			}
+			throw new RuntimeException(
+					"Invalid database: reference sequence lacks terminator character. ");
+		}
+		int mismatches = 0;
+		for (int i=0; i < len; i += 32) {
+			int n = Math.min(32, len - i);
+			long positionMask = n == 32 ? 0xFFFFFFFFL : (1L << n) - 1;
+			if ((bitsAt(endchars, k + i) & positionMask) != 0) {
+				return NO_MATCH;
+			}
+			long diff = bitsAt(bases, 2 * (k + i)) ^ bitsAt(query, 2 * (queryStart + i));
+			long baseMask = n == 32 ? -1L : (1L << (2 * n)) - 1;
+			long mismatchBits = (diff | (diff >>> 1)) & EVEN_BITS & baseMask;
+			long otherBits = bitsAt(others, k + i) & positionMask;
+			if (otherBits != 0) {
+				mismatchBits |= spreadToEvenBits(otherBits);
+			}
+			mismatches += Long.bitCount(mismatchBits);
+			if (mismatches > maxMismatches) {
+				return NO_MATCH;
+			}
+		}
+		return mismatches;
+	}
+}
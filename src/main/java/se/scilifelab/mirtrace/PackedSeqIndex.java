@@ -0,0 +1,220 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.util.Arrays;
+
+/**
+ * Exact-match index from fixed-length sequences to reference sequence ids.
+ * 
+ * Sequences are keyed by their 2-bit packing (first base in the most 
+ * significant bits), so a single probe of an open addressing hash table 
+ * gives the ids of all reference sequences containing the sequence, in 
+ * ascending order. Used for:
+ * 
+ * - the clade databases, where searches are whole-reference exact matches 
+ *   of a CLADE_DB_SEQ_LEN_CUTOFF long query prefix (see ofWholeSequences),
+ * - the artifacts database, where searches are exact matches of any 
+ *   ARTIFACTS_MAPPER_SLIDING_WINDOW_SIZE long query window (see ofWindows).
+ * 
+ * Reference sequences containing other characters than A, C, G and T are 
+ * not indexed, since they cannot match a query (queries consist of 
+ * A, C, G and T only).
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class PackedSeqIndex {
+	
+	static final int NOT_FOUND = -1;
+	
+	/* Marks used slots, since the packed sequence itself may be zero. */
+	private static final long SLOT_USED = 1L << 62;
+	
+	final int seqLen;
+	/* While building, entries are sorted as longs holding the packed 
+	 * sequence above the reference sequence id. */
+	final int idBits;
+	long[] keys;
+	/* Offset of the first id of each slot in 'ids'. */
+	int[] idOffsets;
+	/* Number of ids of each slot. */
+	int[] idCounts;
+	int[] ids;
+	int mask;
+	
+	private PackedSeqIndex(int seqLen, long[] entries, int entryCount) {
+		this.seqLen = seqLen;
+		this.idBits = 63 - 2 * seqLen;
+		final long idMask = (1L << idBits) - 1;
+		
+		/* Group the entries by sequence, keeping the ids of each group in 
+		 * ascending order. */
+		Arrays.sort(entries, 0, entryCount);
+		
+		int capacity = Integer.highestOneBit(Math.max(entryCount, 1)) * 4;
+		keys = new long[capacity];
+		idOffsets = new int[capacity];
+		idCounts = new int[capacity];
+		ids = new int[entryCount];
+		mask = capacity - 1;
+		int idCount = 0;
+		for (int i=0; i < entryCount;) {
+			long packed = entries[i] >>> idBits;
+			int slot = findSlot(packed);
+			keys[slot] = packed | SLOT_USED;
+			idOffsets[slot] = idCount;
+			for (; i < entryCount && (entries[i] >>> idBits) == packed; i++) {
+				if (i > 0 && entries[i] == entries[i - 1]) {
+					/* Sequence occurring more than once in the same refSeq. */
+					continue;
+				}
+				ids[idCount++] = (int) (entries[i] & idMask);
+				idCounts[slot]++;
+			}
+		}
+	}
+	
+	private static void checkIdCount(int seqLen, int idCount) {
+		if (idCount > (1L << (63 - 2 * seqLen))) {
+			throw new IllegalArgumentException("Too many reference sequences to index.");
+		}
+	}
+	
+	/**
+	 * Indexes the reference sequences of length 'seqLen' in the given 
+	 * databases, whose refSeq ids are offset by 'refSeqIdOffsets'.
+	 */
+	static PackedSeqIndex ofWholeSequences(DNASequenceDatabase[] databases, int[] refSeqIdOffsets, 
+			int seqLen) {
+		checkIdCount(seqLen, refSeqIdOffsets[databases.length]);
+		final int idBits = 63 - 2 * seqLen;
+		long[] entries = new long[refSeqIdOffsets[databases.length]];
+		int entryCount = 0;
+		for (int i=0; i < databases.length; i++) {
+			DNASequenceDatabase db = databases[i];
+			int refSeqStart = 0;
+			for (int refSeqId=0; refSeqId < db.getRefSeqCount(); refSeqId++) {
+				int refSeqEnd = db.refSeqEndcharLocations.get(refSeqId);
+				if (refSeqEnd - refSeqStart == seqLen) {
+					long packed = pack(db.refSeq, refSeqStart, seqLen);
+					if (packed >= 0) {
+						entries[entryCount++] = (packed << idBits) | (refSeqIdOffsets[i] + refSeqId);
+					}
+				}
+				refSeqStart = refSeqEnd + 1;
+			}
+		}
+		return new PackedSeqIndex(seqLen, entries, entryCount);
+	}
+	
+	/**
+	 * Indexes every window of length 'windowLen' of the reference 
+	 * sequences of the given database.
+	 */
+	static PackedSeqIndex ofWindows(DNASequenceDatabase db, int windowLen) {
+		checkIdCount(windowLen, db.getRefSeqCount());
+		final int idBits = 63 - 2 * windowLen;
+		final long windowMask = (1L << (2 * windowLen)) - 1;
+		long[] entries = new long[Math.max(db.refSeq.length() - windowLen + 1, 0)];
+		int entryCount = 0;
+		long window = 0;
+		int validBases = 0;
+		int refSeqId = 0;
+		for (int k=0; k < db.refSeq.length(); k++) {
+			byte base = db.refSeq.baseAt(k);
+			if (base == DNASequenceDatabase.ENDCHAR_BYTE) {
+				refSeqId++;
+			}
+			int code = encodeBase(base);
+			if (code < 0) {
+				validBases = 0;
+				continue;
+			}
+			window = ((window << 2) | code) & windowMask;
+			if (++validBases >= windowLen) {
+				entries[entryCount++] = (window << idBits) | refSeqId;
+			}
+		}
+		return new PackedSeqIndex(windowLen, entries, entryCount);
+	}
+	
+	/* 2-bit packing of 'len' bases starting at 'offset'. 
+	 * Returns -1 if the sequence contains other characters than A, C, G and T. */
+	private static long pack(PackedRefSeq seq, int offset, int len) {
+		long packed = 0;
+		for (int i=0; i < len; i++) {
+			int code = encodeBase(seq.baseAt(offset + i));
+			if (code < 0) {
+				return -1;
+			}
+			packed = (packed << 2) | code;
+		}
+		return packed;
+	}
+	
+	private static int encodeBase(byte base) {
+		switch (base) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+	
+	/* Returns the slot holding 'packed', or the empty slot it would go in. */
+	private int findSlot(long packed) {
+		long h = packed * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (keys[slot] != 0 && keys[slot] != (packed | SLOT_USED)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * The first 'len' (at most 31) bases of a sequence 2-bit packed like 
+	 * those of DNASequenceHashMap, repacked with the first base in the most 
+	 * significant bits as in the keys of this index.
+	 */
+	static long prefixKey(long[] packedSeq, int len) {
+		/* Reversing the word also reverses the two bits of each base, 
+		 * which are then swapped back. */
+		long x = Long.reverse(packedSeq[0]);
+		x = ((x >>> 1) & 0x5555555555555555L) | ((x & 0x5555555555555555L) << 1);
+		return x >>> (64 - 2 * len);
+	}
+	
+	/* Looks up a packed sequence. Returns the slot of the matching entries,
+	 * or NOT_FOUND. */
+	int lookup(long packed) {
+		int slot = findSlot(packed);
+		return keys[slot] == 0 ? NOT_FOUND : slot;
+	}
+	
+	int getIdCount(int slot) {
+		return idCounts[slot];
+	}
+	
+	int getId(int slot, int index) {
+		return ids[idOffsets[slot] + index];
+	}
+}
@@ -0,0 +1,500 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * An on-disk, memory-mapped hash table of {@link SequenceClassification} 
+ * results that survives between runs.
+ * 
+ * The file is tagged with a fingerprint of the reference databases (and the
+ * run mode). If the fingerprint differs from the one of the current run, the 
+ * file is cleared before use, so stale classifications are never returned.
+ * Files that don't start with the magic number are left alone.
+ * 
+ * Slots have a fixed size. Reference sequence id lists that don't fit into 
+ * a slot are stored in an id area after the slots, which grows in chunks as
+ * needed. Nothing more is stored once the table has reached its maximum load
+ * factor, but a table that is more than half full when the file is opened
+ * is first copied into one of twice the size.
+ * 
+ * Like {@link ClassificationCache}, the table is split into independently 
+ * locked segments (the low hash bits select the segment), so that the 
+ * classification threads don't all wait for the same lock.
+ * 
+ * File layout (native Java byte order, i.e. big endian):
+ * 
+ * Header:
+ *   0   long      magic number
+ *   8   int       format version
+ *   12  int       slot count (power of 2)
+ *   16  byte[16]  database fingerprint
+ *   32  int[SEGMENT_COUNT]  used slot count of each segment
+ *   288 long      used size of the id area (bytes)
+ * 
+ * Slot:
+ *   0    long[KEY_WORDS]  packed sequence (see {@link ClassificationCache})
+ *   K    byte             sequence length, 0 marks an empty slot
+ *   K+1  byte             RNA type + 1 (0 = not mapped)
+ *   K+2  short            number of RNA type refSeq ids (unsigned)
+ *   K+4  short            number of clade refSeq ids (unsigned)
+ *   K+8  int              global clade refSeq id of the clade result, or -1
+ *   K+12 int[]            RNA type refSeq ids followed by clade refSeq ids, 
+ *                         or, if there are more than MAX_IDS_PER_SLOT of them, 
+ *                         their position in the id area (in ints)
+ * 
+ * Id area (starts right after the last slot):
+ *   int[]  id lists, never crossing a chunk boundary
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class PersistentClassificationCache {
+	
+	static final long MAGIC = 0x6d6952547263437aL;
+	/* 2: complete refSeq id lists, 3: segments, 4: id area. */
+	static final int FORMAT_VERSION = 4;
+	static final int HEADER_SIZE = 512;
+	static final int SLOT_SIZE = 64;
+	static final double MAX_LOAD_FACTOR = 0.75;
+	static final int SEGMENT_BITS = 6;
+	static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+	/* The slots are mapped as one buffer, which can't exceed 2 GB. */
+	static final int MAX_SLOT_COUNT = 1 << 24;
+	static final int MAX_ID_COUNT = 0xffff;
+	static final int ID_CHUNK_INT_BITS = 22;
+	static final int ID_CHUNK_INTS = 1 << ID_CHUNK_INT_BITS; /* 16 MB */
+	static final long ID_CHUNK_BYTES = ID_CHUNK_INTS * 4L;
+	/* Id area positions are ints. */
+	static final int MAX_ID_CHUNKS = 1 << (31 - ID_CHUNK_INT_BITS);
+	
+	private static final int KEY_BYTES = ClassificationCache.KEY_WORDS * 8;
+	private static final int SLOT_OFFSET_LENGTH = KEY_BYTES;
+	private static final int SLOT_OFFSET_RNA_TYPE = KEY_BYTES + 1;
+	private static final int SLOT_OFFSET_RNA_TYPE_ID_COUNT = KEY_BYTES + 2;
+	private static final int SLOT_OFFSET_CLADE_ID_COUNT = KEY_BYTES + 4;
+	private static final int SLOT_OFFSET_CLADE_RESULT = KEY_BYTES + 8;
+	private static final int SLOT_OFFSET_IDS = KEY_BYTES + 12;
+	static final int MAX_IDS_PER_SLOT = (SLOT_SIZE - SLOT_OFFSET_IDS) / 4;
+	
+	private static final int HEADER_OFFSET_VERSION = 8;
+	private static final int HEADER_OFFSET_SLOT_COUNT = 12;
+	private static final int HEADER_OFFSET_FINGERPRINT = 16;
+	private static final int HEADER_OFFSET_USED_SLOTS = 32;
+	private static final int HEADER_OFFSET_ID_AREA_SIZE = HEADER_OFFSET_USED_SLOTS + SEGMENT_COUNT * 4;
+	
+	private final RandomAccessFile file;
+	private final FileLock lock;
+	private final MappedByteBuffer buffer;
+	private final int slotCount;
+	private final int segmentSlots;
+	private final int maxUsedSlotsPerSegment;
+	/* Segment s is guarded by segmentLocks[s], which also guards usedSlots[s]. */
+	private final Object[] segmentLocks = new Object[SEGMENT_COUNT];
+	private final int[] usedSlots = new int[SEGMENT_COUNT];
+	/* The id area is guarded by idAreaLock. Chunks are mapped when first 
+	 * needed and then never change, so readers don't need the lock. */
+	private final Object idAreaLock = new Object();
+	private final AtomicReferenceArray<MappedByteBuffer> idChunks = 
+			new AtomicReferenceArray<MappedByteBuffer>(MAX_ID_CHUNKS);
+	private long idAreaSize;
+	private boolean idAreaFull = false;
+	private final CladeSearchEngine cladeSearchEngine;
+	
+	private PersistentClassificationCache(RandomAccessFile file, FileLock lock, MappedByteBuffer buffer, 
+			int slotCount, CladeSearchEngine cladeSearchEngine) throws IOException {
+		this.file = file;
+		this.lock = lock;
+		this.buffer = buffer;
+		this.slotCount = slotCount;
+		this.segmentSlots = slotCount / SEGMENT_COUNT;
+		this.maxUsedSlotsPerSegment = (int) (segmentSlots * MAX_LOAD_FACTOR);
+		for (int s = 0; s < SEGMENT_COUNT; s++) {
+			segmentLocks[s] = new Object();
+			usedSlots[s] = buffer.getInt(HEADER_OFFSET_USED_SLOTS + s * 4);
+		}
+		this.idAreaSize = buffer.getLong(HEADER_OFFSET_ID_AREA_SIZE);
+		for (int c = 0; c * ID_CHUNK_BYTES < idAreaSize; c++) {
+			mapIdChunk(c);
+		}
+		this.cladeSearchEngine = cladeSearchEngine;
+	}
+	
+	/** Combines the checksums of all loaded databases with the run mode. */
+	static byte[] databaseFingerprint(Config config, RNATypeSearchEngine rnaTypeSearchEngine, 
+			CladeSearchEngine cladeSearchEngine) {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		hasher.putInt(FORMAT_VERSION);
+		hasher.putBoolean(config.qcMode());
+		if (rnaTypeSearchEngine != null) {
+			rnaTypeSearchEngine.putDatabaseChecksums(hasher);
+		}
+		cladeSearchEngine.putDatabaseChecksums(hasher);
+		HashCode fingerprint = hasher.hash();
+		return fingerprint.asBytes();
+	}
+	
+	/** The slot count of a table that holds at least this many sequences. */
+	static int slotCountFor(int sequences) {
+		int slots = SEGMENT_COUNT;
+		while ((slots < MAX_SLOT_COUNT) && (slots * MAX_LOAD_FACTOR < sequences)) {
+			slots <<= 1;
+		}
+		return slots;
+	}
+	
+	/**
+	 * Opens (or creates) the cache file, with at least 'minSlotCount' slots.
+	 * A table that is more than half full is grown first. Returns null, after 
+	 * printing a warning, if the file can't be used.
+	 */
+	static PersistentClassificationCache open(File cacheFile, byte[] fingerprint, int minSlotCount, 
+			CladeSearchEngine cladeSearchEngine) {
+		PersistentClassificationCache cache = openFile(cacheFile, fingerprint, minSlotCount, cladeSearchEngine);
+		if (cache == null) {
+			return null;
+		}
+		int newSlotCount = Math.max(cache.slotCount, minSlotCount);
+		int usedSlots = cache.getUsedSlots();
+		while ((newSlotCount < MAX_SLOT_COUNT) && (usedSlots * 2 > newSlotCount * MAX_LOAD_FACTOR)) {
+			newSlotCount <<= 1;
+		}
+		if (newSlotCount > cache.slotCount) {
+			cache = cache.grow(cacheFile, fingerprint, newSlotCount);
+		}
+		return cache;
+	}
+	
+	private static PersistentClassificationCache openFile(File cacheFile, byte[] fingerprint, int newSlotCount, 
+			CladeSearchEngine cladeSearchEngine) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(cacheFile, "rw");
+			FileChannel channel = raf.getChannel();
+			FileLock lock = channel.tryLock();
+			if (lock == null) {
+				System.err.println("WARNING: Classification cache file '" + cacheFile + 
+						"' is in use by another process. Running without it.");
+				raf.close();
+				return null;
+			}
+			
+			/* Reuse the file only if it was written for the same databases. */
+			int slotCount = newSlotCount;
+			boolean valid = false;
+			if (raf.length() > 0) {
+				/* Read with plain I/O; the file may be truncated below, which 
+				 * is not allowed on all platforms while it is mapped. */
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				channel.read(header, 0);
+				if ((raf.length() < 8) || (header.getLong(0) != MAGIC)) {
+					/* Never reset a file that isn't a cache, e.g. a mistyped report or FASTQ file name. */
+					System.err.println("WARNING: '" + cacheFile + "' is not a classification cache file. " +
+							"Running without the cache.");
+					lock.release();
+					raf.close();
+					return null;
+				}
+				byte[] storedFingerprint = new byte[fingerprint.length];
+				header.position(HEADER_OFFSET_FINGERPRINT);
+				header.get(storedFingerprint);
+				int storedSlotCount = header.getInt(HEADER_OFFSET_SLOT_COUNT);
+				long storedIdAreaSize = header.getLong(HEADER_OFFSET_ID_AREA_SIZE);
+				valid = (header.getInt(HEADER_OFFSET_VERSION) == FORMAT_VERSION) &&
+						(Integer.bitCount(storedSlotCount) == 1) && 
+						(storedSlotCount >= SEGMENT_COUNT) && (storedSlotCount <= MAX_SLOT_COUNT) &&
+						(storedIdAreaSize >= 0) && (storedIdAreaSize <= MAX_ID_CHUNKS * ID_CHUNK_BYTES) &&
+						(raf.length() >= HEADER_SIZE + (long) storedSlotCount * SLOT_SIZE + storedIdAreaSize) &&
+						Arrays.equals(storedFingerprint, fingerprint);
+				if (valid) {
+					slotCount = storedSlotCount;
+				}
+			}
+			long tableSize = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+			if (!valid) {
+				/* Truncating first makes sure all slots read as empty. */
+				raf.setLength(0);
+				raf.setLength(tableSize);
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, tableSize);
+			if (!valid) {
+				buffer.putLong(0, MAGIC);
+				buffer.putInt(HEADER_OFFSET_VERSION, FORMAT_VERSION);
+				buffer.putInt(HEADER_OFFSET_SLOT_COUNT, slotCount);
+				buffer.position(HEADER_OFFSET_FINGERPRINT);
+				buffer.put(fingerprint);
+			}
+			return new PersistentClassificationCache(raf, lock, buffer, slotCount, cladeSearchEngine);
+		} catch (IOException e) {
+			System.err.println("WARNING: Could not open classification cache file '" + cacheFile + 
+					"' (" + e.getMessage() + "). Running without it.");
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e2) {
+					/* Nothing more to do. */
+				}
+			}
+			return null;
+		}
+	}
+	
+	/* Copies the entries into a new file with 'newSlotCount' slots, which then 
+	 * replaces this one. Keeps using this file if that fails. */
+	private PersistentClassificationCache grow(File cacheFile, byte[] fingerprint, int newSlotCount) {
+		File tmpFile = null;
+		PersistentClassificationCache grown = null;
+		try {
+			tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+			grown = openFile(tmpFile, fingerprint, newSlotCount, cladeSearchEngine);
+			if (grown == null) {
+				tmpFile.delete();
+				return this;
+			}
+			long[] key = new long[ClassificationCache.KEY_WORDS];
+			for (int slot = 0; slot < slotCount; slot++) {
+				int offset = HEADER_SIZE + slot * SLOT_SIZE;
+				int seqLen = buffer.get(offset + SLOT_OFFSET_LENGTH);
+				if (seqLen == 0) {
+					continue;
+				}
+				for (int i = 0; i < ClassificationCache.KEY_WORDS; i++) {
+					key[i] = buffer.getLong(offset + i * 8);
+				}
+				grown.put(key, seqLen, readClassification(offset));
+			}
+			grown.buffer.force();
+			Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.err.println("WARNING: Could not grow classification cache file '" + cacheFile + 
+					"' (" + e.getMessage() + ").");
+			if (grown != null) {
+				grown.close();
+			}
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
+			return this;
+		}
+		close();
+		return grown;
+	}
+	
+	/* Maps chunk c of the id area, which extends the file if needed. */
+	private void mapIdChunk(int c) throws IOException {
+		long tableSize = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+		idChunks.set(c, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 
+				tableSize + c * ID_CHUNK_BYTES, ID_CHUNK_BYTES));
+	}
+	
+	/* Returns the id area position (in ints) of room for 'count' ids, or -1 
+	 * if the id area can't grow any further. */
+	private int allocateIds(int count) {
+		synchronized (idAreaLock) {
+			if (idAreaFull) {
+				return -1;
+			}
+			long position = idAreaSize;
+			long chunkEnd = (position / ID_CHUNK_BYTES + 1) * ID_CHUNK_BYTES;
+			if (position + count * 4L > chunkEnd) {
+				position = chunkEnd;
+			}
+			int c = (int) (position / ID_CHUNK_BYTES);
+			if (c >= MAX_ID_CHUNKS) {
+				idAreaFull = true;
+				return -1;
+			}
+			if (idChunks.get(c) == null) {
+				try {
+					mapIdChunk(c);
+				} catch (IOException e) {
+					System.err.println("WARNING: Could not extend classification cache file (" + 
+							e.getMessage() + ").");
+					idAreaFull = true;
+					return -1;
+				}
+			}
+			idAreaSize = position + count * 4L;
+			buffer.putLong(HEADER_OFFSET_ID_AREA_SIZE, idAreaSize);
+			return (int) (position / 4);
+		}
+	}
+	
+	/* Returns the offset of the slot holding the key, or of the empty slot where 
+	 * it belongs. The caller must hold the lock of the segment. */
+	private int findSlot(long[] key, int seqLen, int h) {
+		int segmentOffset = HEADER_SIZE + (h & (SEGMENT_COUNT - 1)) * segmentSlots * SLOT_SIZE;
+		/* The low bits were used to select the segment. */
+		int slot = (h >>> SEGMENT_BITS) & (segmentSlots - 1);
+		while (true) {
+			int offset = segmentOffset + slot * SLOT_SIZE;
+			int storedLen = buffer.get(offset + SLOT_OFFSET_LENGTH);
+			if (storedLen == 0) {
+				return offset;
+			}
+			if (storedLen == seqLen) {
+				boolean identical = true;
+				for (int i = 0; i < ClassificationCache.KEY_WORDS; i++) {
+					if (buffer.getLong(offset + i * 8) != key[i]) {
+						identical = false;
+						break;
+					}
+				}
+				if (identical) {
+					return offset;
+				}
+			}
+			slot = (slot + 1) & (segmentSlots - 1);
+		}
+	}
+	
+	/* Decodes a used slot. The caller must hold the lock of the segment. */
+	private SequenceClassification readClassification(int offset) {
+		int rnaType = buffer.get(offset + SLOT_OFFSET_RNA_TYPE) - 1;
+		int[] rnaTypeRefSeqIds = new int[buffer.getShort(offset + SLOT_OFFSET_RNA_TYPE_ID_COUNT) & 0xffff];
+		int[] miRBaseEntries = new int[buffer.getShort(offset + SLOT_OFFSET_CLADE_ID_COUNT) & 0xffff];
+		int cladeRefSeqId = buffer.getInt(offset + SLOT_OFFSET_CLADE_RESULT);
+		ByteBuffer idBuffer = buffer;
+		int idOffset = offset + SLOT_OFFSET_IDS;
+		if (rnaTypeRefSeqIds.length + miRBaseEntries.length > MAX_IDS_PER_SLOT) {
+			int position = buffer.getInt(offset + SLOT_OFFSET_IDS);
+			idBuffer = idChunks.get(position >>> ID_CHUNK_INT_BITS);
+			idOffset = (position & (ID_CHUNK_INTS - 1)) * 4;
+		}
+		for (int i = 0; i < rnaTypeRefSeqIds.length; i++, idOffset += 4) {
+			rnaTypeRefSeqIds[i] = idBuffer.getInt(idOffset);
+		}
+		for (int i = 0; i < miRBaseEntries.length; i++, idOffset += 4) {
+			miRBaseEntries[i] = idBuffer.getInt(idOffset);
+		}
+		CladeSearchEngine.CladeSearchResult cladeResult = null;
+		if (cladeRefSeqId >= 0) {
+			cladeResult = cladeSearchEngine.getSearchResult(cladeRefSeqId);
+		}
+		return SequenceClassification.create(rnaType, rnaTypeRefSeqIds, cladeResult, miRBaseEntries);
+	}
+	
+	SequenceClassification get(long[] key, int seqLen) {
+		int h = ClassificationCache.hash(key, seqLen);
+		synchronized (segmentLocks[h & (SEGMENT_COUNT - 1)]) {
+			int offset = findSlot(key, seqLen, h);
+			if (buffer.get(offset + SLOT_OFFSET_LENGTH) == 0) {
+				return null;
+			}
+			return readClassification(offset);
+		}
+	}
+	
+	void put(long[] key, int seqLen, SequenceClassification classification) {
+		int idCount = classification.rnaTypeRefSeqIds.length + classification.miRBaseEntries.length;
+		if ((classification.rnaTypeRefSeqIds.length > MAX_ID_COUNT) || 
+				(classification.miRBaseEntries.length > MAX_ID_COUNT)) {
+			return;
+		}
+		int h = ClassificationCache.hash(key, seqLen);
+		int segment = h & (SEGMENT_COUNT - 1);
+		synchronized (segmentLocks[segment]) {
+			if (usedSlots[segment] >= maxUsedSlotsPerSegment) {
+				return;
+			}
+			int offset = findSlot(key, seqLen, h);
+			if (buffer.get(offset + SLOT_OFFSET_LENGTH) != 0) {
+				/* Already stored (by another pipeline). */
+				return;
+			}
+			ByteBuffer idBuffer = buffer;
+			int idOffset = offset + SLOT_OFFSET_IDS;
+			if (idCount > MAX_IDS_PER_SLOT) {
+				int position = allocateIds(idCount);
+				if (position < 0) {
+					return;
+				}
+				buffer.putInt(offset + SLOT_OFFSET_IDS, position);
+				idBuffer = idChunks.get(position >>> ID_CHUNK_INT_BITS);
+				idOffset = (position & (ID_CHUNK_INTS - 1)) * 4;
+			}
+			for (int id : classification.rnaTypeRefSeqIds) {
+				idBuffer.putInt(idOffset, id);
+				idOffset += 4;
+			}
+			for (int id : classification.miRBaseEntries) {
+				idBuffer.putInt(idOffset, id);
+				idOffset += 4;
+			}
+			buffer.putInt(offset + SLOT_OFFSET_CLADE_RESULT, 
+					classification.cladeResult == null ? -1 : classification.cladeResult.globalRefSeqId);
+			buffer.putShort(offset + SLOT_OFFSET_CLADE_ID_COUNT, (short) classification.miRBaseEntries.length);
+			buffer.putShort(offset + SLOT_OFFSET_RNA_TYPE_ID_COUNT, (short) classification.rnaTypeRefSeqIds.length);
+			buffer.put(offset + SLOT_OFFSET_RNA_TYPE, (byte) (classification.rnaType + 1));
+			for (int i = 0; i < ClassificationCache.KEY_WORDS; i++) {
+				buffer.putLong(offset + i * 8, key[i]);
+			}
+			/* The length is written last since it marks the slot as used. */
+			buffer.put(offset + SLOT_OFFSET_LENGTH, (byte) seqLen);
+			usedSlots[segment]++;
+			/* Kept up to date so the load factor limit holds even after a crash. */
+			buffer.putInt(HEADER_OFFSET_USED_SLOTS + segment * 4, usedSlots[segment]);
+		}
+	}
+	
+	/* Called once all classification threads are done. */
+	void close() {
+		buffer.force();
+		for (int c = 0; c < MAX_ID_CHUNKS; c++) {
+			MappedByteBuffer chunk = idChunks.get(c);
+			if (chunk == null) {
+				break;
+			}
+			chunk.force();
+		}
+		try {
+			lock.release();
+			file.close();
+		} catch (IOException e) {
+			System.err.println("WARNING: Could not close classification cache file (" + e.getMessage() + ").");
+		}
+	}
+	
+	int getUsedSlots() {
+		int total = 0;
+		for (int s = 0; s < SEGMENT_COUNT; s++) {
+			synchronized (segmentLocks[s]) {
+				total += usedSlots[s];
+			}
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressed kmer posting lists (the reference offsets of each kmer).
+ * 
+ * Each list is stored as a varint entry count followed by the entries as
+ * zigzag varint deltas (the first entry as a delta from 0). The entries of
+ * a list are mostly ascending, so most deltas fit in one or two bytes 
+ * instead of four. Lists are addressed by their byte offset, which is
+ * what the kmer lookup table of a DNASequenceDatabase holds.
+ * 
+ * The data is a ByteBuffer (a wrapped heap array or a view of a 
+ * memory-mapped index file) that is only read with absolute get() calls, 
+ * so it can be shared between threads; each thread decodes with its own
+ * Cursor.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class PostingLists {
+	
+	/* Reusable decoder of one posting list at a time. */
+	static class Cursor {
+		ByteBuffer data;
+		int pos;
+		int remaining;
+		int value; /* The current entry, valid after next() returned true. */
+		
+		void open(ByteBuffer data, int offset) {
+			this.data = data;
+			this.pos = offset;
+			this.value = 0;
+			this.remaining = readVarint();
+		}
+		
+		/* Advances to the next entry. */
+		boolean next() {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			int zigzag = readVarint();
+			value += (zigzag >>> 1) ^ -(zigzag & 1);
+			return true;
+		}
+		
+		private int readVarint() {
+			int b = data.get(pos++);
+			if (b >= 0) {
+				return b;
+			}
+			int result = b & 0x7f;
+			int shift = 7;
+			do {
+				b = data.get(pos++);
+				result |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return result;
+		}
+	}
+	
+	static class Builder {
+		byte[] data = new byte[1 << 16];
+		int size = 0;
+		
+		/* Appends a list and returns its offset. */
+		int add(int[] entries, int count) {
+			int offset = size;
+			writeVarint(count);
+			int previous = 0;
+			for (int i=0; i < count; i++) {
+				int delta = entries[i] - previous;
+				writeVarint((delta << 1) ^ (delta >> 31));
+				previous = entries[i];
+			}
+			return offset;
+		}
+		
+		private void writeVarint(int value) {
+			if (size + 5 > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, size + 5));
+			}
+			while ((value & ~0x7f) != 0) {
+				data[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[size++] = (byte) value;
+		}
+		
+		ByteBuffer build() {
+			return ByteBuffer.wrap(Arrays.copyOf(data, size));
+		}
+	}
+}
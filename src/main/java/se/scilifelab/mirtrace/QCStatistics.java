@@ -21,12 +21,12 @@ package se.scilifelab.mirtrace;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 class QCStatistics {
 	
@@ -46,23 +46,55 @@ class QCStatistics {
 	long[] statsNucleotidePhredScores;
 	long[] statsLength;
 	long[] statsRNAType;
+	/* Reads included in the artifact count of 'statsRNAType' only because 
+	 * they matched the --contaminant-db index. */
+	long statsRNATypeContaminantReads;
 	long[] statsQC;
 	long[] statsClades;
-	List<Set<String>> foundCladeFamilies;
-	List<Set<Integer>> foundRNAReads;
+	/* Only filled in by prepareForExport(), from 'foundCladeFamilyIndexes' 
+	 * and 'foundRNARefSeqIds'. */
+	List<List<String>> foundCladeFamilies;
+	List<List<Integer>> foundRNAReads;
 	Map<String,String> qcAnalysisFlags = new HashMap<String,String>();
-	transient Map<String,CladeFamilyRecord> foundCladeSpecificmiRBaseEntries = new HashMap<String,CladeFamilyRecord>();
+	/* Family indexes (see CladeSearchEngine.cladeFamilyIds) found, per clade. */
+	transient BitSet[] foundCladeFamilyIndexes;
+	/* Reference sequence ids found, per RNA type. */
+	transient BitSet[] foundRNARefSeqIds;
+	/* Lowest read depth at which each miRNA reference sequence was 
+	 * detected, by refSeq id, or NOT_DETECTED. Grown on demand. */
+	transient int[] miRNADetectionDepths = new int[0];
+	/* Records of the clade database prefixes found, by the global refSeq 
+	 * id of the first clade database entry the prefix matches (which 
+	 * identifies the prefix). Grown on demand, null where not found. */
+	transient CladeFamilyRecord[] foundCladeSpecificmiRBaseEntries = new CladeFamilyRecord[0];
 	
-	boolean hasCladeSpecificmiRBaseEntry(String usedSeqPrefix) {
-		return foundCladeSpecificmiRBaseEntries.containsKey(usedSeqPrefix);
+	static final int NOT_DETECTED = Integer.MAX_VALUE;
+	
+	/* Returns null if no record has been stored for the key. */
+	CladeFamilyRecord getCladeSpecificmiRBaseEntry(int firstGlobalRefSeqId) {
+		if (firstGlobalRefSeqId >= foundCladeSpecificmiRBaseEntries.length) {
+			return null;
+		}
+		return foundCladeSpecificmiRBaseEntries[firstGlobalRefSeqId];
 	}
 
-	CladeFamilyRecord getCladeSpecificmiRBaseEntry(String usedSeqPrefix) {
-		return foundCladeSpecificmiRBaseEntries.get(usedSeqPrefix);
+	void storeCladeSpecificmiRBaseEntries(int firstGlobalRefSeqId, CladeFamilyRecord record) {
+		if (firstGlobalRefSeqId >= foundCladeSpecificmiRBaseEntries.length) {
+			foundCladeSpecificmiRBaseEntries = Arrays.copyOf(foundCladeSpecificmiRBaseEntries, 
+					Math.max(firstGlobalRefSeqId + 1, 2 * foundCladeSpecificmiRBaseEntries.length));
+		}
+		foundCladeSpecificmiRBaseEntries[firstGlobalRefSeqId] = record;
 	}
-
-	void storeCladeSpecificmiRBaseEntries(String usedSeqPrefix, CladeFamilyRecord record) {
-		foundCladeSpecificmiRBaseEntries.put(usedSeqPrefix, record);
+	
+	/* All stored records, in key order. */
+	List<CladeFamilyRecord> getCladeSpecificmiRBaseEntries() {
+		List<CladeFamilyRecord> records = new ArrayList<CladeFamilyRecord>();
+		for (CladeFamilyRecord r : foundCladeSpecificmiRBaseEntries) {
+			if (r != null) {
+				records.add(r);
+			}
+		}
+		return records;
 	}
 
 	/*
@@ -82,13 +114,13 @@ class QCStatistics {
 		this.statsQC = new long[5];
 		this.statsClades = new long[Config.CLADES.length];
 		this.statsComplexityReadDepth = new ArrayList<Long>();
-		this.foundCladeFamilies = new ArrayList<Set<String>>();
+		this.foundCladeFamilyIndexes = new BitSet[Config.CLADES.length];
 		for (int i=0; i < Config.CLADES.length; i++) {
-			foundCladeFamilies.add(new HashSet<String>());
+			foundCladeFamilyIndexes[i] = new BitSet();
 		}
-		this.foundRNAReads = new ArrayList<Set<Integer>>();
+		this.foundRNARefSeqIds = new BitSet[Config.NUMBER_OF_RNA_CLASSES];
 		for (int i=0; i < Config.NUMBER_OF_RNA_CLASSES; i++) {
-			foundRNAReads.add(new HashSet<Integer>());
+			foundRNARefSeqIds[i] = new BitSet();
 		}
 		qcAnalysisFlags.put("phred", "unknown");
 		qcAnalysisFlags.put("length", "unknown");
@@ -123,20 +155,43 @@ class QCStatistics {
 		statsComplexityReadDepth.add(readDepth);
 	}
 
-	void storeFoundCladeFamily(int cladeId, String cladeFamily) {
-		foundCladeFamilies.get(cladeId).add(cladeFamily);
+	void storeFoundCladeFamily(int cladeId, int familyIndex) {
+		foundCladeFamilyIndexes[cladeId].set(familyIndex);
 	}
 
 	void storeFoundRNARead(int miRNAType, int miRNAId) {
-		foundRNAReads.get(miRNAType).add(miRNAId);
+		foundRNARefSeqIds[miRNAType].set(miRNAId);
+	}
+	
+	/* Keeps the lowest depth at which each miRNA refSeq was detected. */
+	void storeMiRNADetectionDepth(int refSeqId, int readDepth) {
+		if (refSeqId >= miRNADetectionDepths.length) {
+			int oldLength = miRNADetectionDepths.length;
+			miRNADetectionDepths = Arrays.copyOf(miRNADetectionDepths, Math.max(refSeqId + 1, 2 * oldLength));
+			Arrays.fill(miRNADetectionDepths, oldLength, miRNADetectionDepths.length, NOT_DETECTED);
+		}
+		if (readDepth < miRNADetectionDepths[refSeqId]) {
+			miRNADetectionDepths[refSeqId] = readDepth;
+		}
+	}
+	
+	/* Stores the lowest detection depth of each detected miRNA as the 
+	 * complexity statistics. */
+	void storeComplexityFromDetectionDepths() {
+		storeComplexity(0);
+		for (int depth : miRNADetectionDepths) {
+			if (depth != NOT_DETECTED) {
+				storeComplexity(depth);
+			}
+		}
 	}
 	
 	static int getMinPhredScore() {
 		return Config.MIN_PHRED_REPORTED;
 	}
 	
-	Set<Integer> getFoundRNAReads(int rnaType) {
-		return foundRNAReads.get(rnaType);
+	BitSet getFoundRNAReads(int rnaType) {
+		return foundRNARefSeqIds[rnaType];
 	}
 
 	static int getPhredScoreArraySize() {
@@ -158,6 +213,10 @@ class QCStatistics {
 	long[] getRNATypeStats() {
 		return statsRNAType;
 	}
+	
+	long getRNATypeContaminantReads() {
+		return statsRNATypeContaminantReads;
+	}
 
 	long getAllSeqsCount() {
 		return allSeqsCount;
@@ -172,8 +231,71 @@ class QCStatistics {
 		return statsComplexityReadDepth;
 	}
 	
-	void prepareForExport() {
+	/* Fills in the exported found families and reference sequences. */
+	void prepareForExport(CladeSearchEngine cladeSearchEngine) {
 		Collections.sort(statsComplexityReadDepth);
+		foundCladeFamilies = new ArrayList<List<String>>();
+		for (int i=0; i < Config.CLADES.length; i++) {
+			List<String> families = new ArrayList<String>();
+			BitSet found = foundCladeFamilyIndexes[i];
+			for (int f = found.nextSetBit(0); f >= 0; f = found.nextSetBit(f + 1)) {
+				families.add(cladeSearchEngine.cladeFamilyIds[i][f]);
+			}
+			foundCladeFamilies.add(families);
+		}
+		foundRNAReads = new ArrayList<List<Integer>>();
+		for (int i=0; i < Config.NUMBER_OF_RNA_CLASSES; i++) {
+			List<Integer> refSeqIds = new ArrayList<Integer>();
+			BitSet found = foundRNARefSeqIds[i];
+			for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+				refSeqIds.add(id);
+			}
+			foundRNAReads.add(refSeqIds);
+		}
+	}
+	
+	/* Adds the statistics of 'other', collected over other reads of the 
+	 * same sample. The complexity statistics are derived afterwards (see 
+	 * storeComplexityFromDetectionDepths). */
+	void merge(QCStatistics other) {
+		allSeqsCount += other.allSeqsCount;
+		uniqueQCPassedSeqsCount += other.uniqueQCPassedSeqsCount;
+		add(statsNucleotidePhredScores, other.statsNucleotidePhredScores);
+		add(statsLength, other.statsLength);
+		add(statsRNAType, other.statsRNAType);
+		statsRNATypeContaminantReads += other.statsRNATypeContaminantReads;
+		add(statsQC, other.statsQC);
+		add(statsClades, other.statsClades);
+		for (int i=0; i < Config.CLADES.length; i++) {
+			foundCladeFamilyIndexes[i].or(other.foundCladeFamilyIndexes[i]);
+		}
+		for (int i=0; i < Config.NUMBER_OF_RNA_CLASSES; i++) {
+			foundRNARefSeqIds[i].or(other.foundRNARefSeqIds[i]);
+		}
+		for (int refSeqId=0; refSeqId < other.miRNADetectionDepths.length; refSeqId++) {
+			if (other.miRNADetectionDepths[refSeqId] != NOT_DETECTED) {
+				storeMiRNADetectionDepth(refSeqId, other.miRNADetectionDepths[refSeqId]);
+			}
+		}
+		for (int key=0; key < other.foundCladeSpecificmiRBaseEntries.length; key++) {
+			CladeFamilyRecord otherRecord = other.foundCladeSpecificmiRBaseEntries[key];
+			if (otherRecord == null) {
+				continue;
+			}
+			CladeFamilyRecord record = getCladeSpecificmiRBaseEntry(key);
+			if (record == null) {
+				storeCladeSpecificmiRBaseEntries(key, otherRecord);
+			} else {
+				record.putmiRBaseIds(otherRecord);
+				record.increaseCount(otherRecord.count);
+			}
+		}
+	}
+	
+	private static void add(long[] sums, long[] values) {
+		for (int i=0; i < sums.length; i++) {
+			sums[i] += values[i];
+		}
 	}
 
 
@@ -19,26 +19,58 @@
 *******************************************************************************/
 package se.scilifelab.mirtrace;
 
-import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 
 class RNATypeSearchEngine {
 
 	Map<String,Integer> rnaTypes = new HashMap<String,Integer>(); 
 	Map<Integer,DNASequenceDatabase> databases = new HashMap<Integer,DNASequenceDatabase>();
+	/* The miRNA, tRNA and rRNA databases are concatenated into one, in 
+	 * tie-breaking priority order, so that they are searched in a single 
+	 * pass. Only the artifacts database is kept in 'databases'. */
+	static final int[] COMBINED_RNA_TYPES = {
+		Config.RNA_TYPE_MI_RNA, Config.RNA_TYPE_T_RNA, Config.RNA_TYPE_R_RNA
+	};
+	DNASequenceDatabase combinedDatabase;
+	/* RNA type of each part of 'combinedDatabase'. An overlay is the part 
+	 * directly after the database it extends, and its reference sequence 
+	 * ids are offset by 'partRefSeqIdOffsets' so that they follow the ids 
+	 * of that database. */
+	int[] partTypes;
+	int[] partRefSeqIdOffsets;
+	/* Null unless the custom database folder has an artifacts overlay. */
+	DNASequenceDatabase artifactsOverlay;
+	/* Null if the miRNA database is too large. */
+	MismatchNeighbourhoodIndex miRNAIndex;
+	/* Null unless --contaminant-db is given. */
+	FMIndex contaminantIndex;
+	int[] refSeqCounts = new int[Config.NUMBER_OF_RNA_CLASSES];
+	HashCode[] checksums = new HashCode[Config.NUMBER_OF_RNA_CLASSES];
+	HashCode[] overlayChecksums = new HashCode[Config.NUMBER_OF_RNA_CLASSES];
 	Config config;
 	Queue<String> warnings;
 	
-	public RNATypeSearchEngine(Config config, Queue<String> warnings) throws DBNotFoundException {
+	/* The databases are loaded in 'loaderPool'. */
+	public RNATypeSearchEngine(Config config, Queue<String> warnings, ExecutorService loaderPool) throws DBNotFoundException {
 		this.config = config;
 		this.warnings = warnings;
 		rnaTypes.put("rrna", Config.RNA_TYPE_R_RNA);
 		rnaTypes.put("trna", Config.RNA_TYPE_T_RNA);
 		rnaTypes.put("mirna", Config.RNA_TYPE_MI_RNA);
 		rnaTypes.put("artifacts", Config.RNA_TYPE_ART_RNA);
-				
+		
+		Map<Integer,Future<DNASequenceDatabase>> loads = new HashMap<Integer,Future<DNASequenceDatabase>>();
+		Map<Integer,Future<DNASequenceDatabase>> overlayLoads = new HashMap<Integer,Future<DNASequenceDatabase>>();
 		for (Map.Entry<String,Integer> e : rnaTypes.entrySet()) {
 			String species;
 			String key;
@@ -50,14 +82,112 @@ class RNATypeSearchEngine {
 				key = e.getKey();
 			}
 			String dbFilename = "rnatype." + species + "." + key + ".db.gz";
-			InputStream dbInputStream = DatabaseLoader.loadDatabase(dbFilename, config, false, warnings, 
+			/* An overlay extends the bundled database, so it is not missing. */
+			Future<DNASequenceDatabase> overlayLoad = DatabaseLoader.submitOverlay(loaderPool, dbFilename, config);
+			if (overlayLoad != null) {
+				overlayLoads.put(e.getValue(), overlayLoad);
+			}
+			loads.put(e.getValue(), DatabaseLoader.submit(loaderPool, dbFilename, config, warnings, 
+					overlayLoad != null ? null : 
 					"Running miRTrace in custom database mode but no custom database found for species " + config.getSpeciesVerbosename() + 
-					" and RNA type " + key);
-			databases.put(e.getValue(), new DNASequenceDatabase(dbInputStream));
+					" and RNA type " + key));
+		}
+		for (Map.Entry<Integer,Future<DNASequenceDatabase>> e : loads.entrySet()) {
+			DNASequenceDatabase db = SearchEngines.await(e.getValue());
+			databases.put(e.getKey(), db);
+			refSeqCounts[e.getKey()] = db.getRefSeqCount();
+			checksums[e.getKey()] = db.getChecksum();
+		}
+		Map<Integer,DNASequenceDatabase> overlays = new HashMap<Integer,DNASequenceDatabase>();
+		for (Map.Entry<Integer,Future<DNASequenceDatabase>> e : overlayLoads.entrySet()) {
+			DNASequenceDatabase overlay = SearchEngines.await(e.getValue());
+			overlays.put(e.getKey(), overlay);
+			refSeqCounts[e.getKey()] += overlay.getRefSeqCount();
+			overlayChecksums[e.getKey()] = overlay.getChecksum();
+		}
+		/* The index only covers the base miRNA database (part 0), an 
+		 * overlay is searched as an ordinary part. */
+		miRNAIndex = MismatchNeighbourhoodIndex.build(databases.get(Config.RNA_TYPE_MI_RNA), 
+				Config.MISMATCH_INDEX_MAX_REF_SEQ_BASES);
+		List<DNASequenceDatabase> parts = new ArrayList<DNASequenceDatabase>();
+		IntList types = new IntList();
+		IntList idOffsets = new IntList();
+		for (int rnaType : COMBINED_RNA_TYPES) {
+			DNASequenceDatabase db = databases.remove(rnaType);
+			parts.add(db);
+			types.add(rnaType);
+			idOffsets.add(0);
+			if (overlays.containsKey(rnaType)) {
+				parts.add(overlays.get(rnaType));
+				types.add(rnaType);
+				idOffsets.add(db.getRefSeqCount());
+			}
+		}
+		combinedDatabase = new DNASequenceDatabase(parts.toArray(new DNASequenceDatabase[parts.size()]));
+		partTypes = types.toArray();
+		partRefSeqIdOffsets = idOffsets.toArray();
+		databases.get(Config.RNA_TYPE_ART_RNA).buildWindowIndex();
+		artifactsOverlay = overlays.get(Config.RNA_TYPE_ART_RNA);
+		if (artifactsOverlay != null) {
+			artifactsOverlay.buildWindowIndex();
+		}
+		if (config.getContaminantDB() != null) {
+			try {
+				contaminantIndex = FMIndex.load(config.getContaminantDB());
+			} catch (IOException e) {
+				throw new DBNotFoundException("Could not load contaminant database: " + e.getMessage());
+			}
 		}
 	}
 	
-	String search(byte[] seq, int seqLen) {
+	/* Returns one of the Config.RNA_TYPE_* constants. 'packedSeq' is 2-bit
+	 * packed like the sequences of DNASequenceHashMap. */
+	int search(long[] packedSeq, int seqLen, DNASequenceDatabase.SearchContext c) {
+		c.encodeQuery(packedSeq, seqLen);
+		return search(seqLen, searchMiRNAIndex(packedSeq, seqLen), c);
+	}
+	
+	/**
+	 * Batched search(): the RNA types of the first 'count' queries are 
+	 * stored in 'rnaTypes'. The queries are processed in stages, each over 
+	 * the whole batch, so that the memory accesses of one stage overlap 
+	 * across queries: 
+	 * 
+	 * 1) encode the queries and probe the miRNA index,
+	 * 2) look up the seed kmers in the combined database of the queries 
+	 *    that are still unresolved (see DNASequenceDatabase.lookupSeeds),
+	 * 3) walk the posting lists and search the remaining databases.
+	 * 
+	 * Each query needs its own context. 
+	 */
+	void searchBatch(long[][] packedSeqs, int[] seqLens, int count, 
+			DNASequenceDatabase.SearchContext[] contexts, int[] rnaTypes) {
+		/* 'rnaTypes' holds the miRNA index mismatches until stage 3. */
+		for (int q=0; q < count; q++) {
+			contexts[q].encodeQuery(packedSeqs[q], seqLens[q]);
+			rnaTypes[q] = searchMiRNAIndex(packedSeqs[q], seqLens[q]);
+		}
+		for (int q=0; q < count; q++) {
+			if (rnaTypes[q] != 0) {
+				combinedDatabase.lookupSeeds(seqLens[q], contexts[q]);
+			}
+		}
+		for (int q=0; q < count; q++) {
+			rnaTypes[q] = search(seqLens[q], rnaTypes[q], contexts[q]);
+		}
+	}
+	
+	/* The number of mismatches of the best miRNA match found by the 
+	 * index, or NO_MATCH if there is none or the index can't be used. */
+	private int searchMiRNAIndex(long[] packedSeq, int seqLen) {
+		if (miRNAIndex != null && MismatchNeighbourhoodIndex.canSearch(seqLen)) {
+			return miRNAIndex.minMismatches(PackedSeqIndex.prefixKey(packedSeq, seqLen), seqLen);
+		}
+		return MismatchNeighbourhoodIndex.NO_MATCH;
+	}
+	
+	/* The query must have been encoded into 'c'. */
+	private int search(int seqLen, int miRNAMismatches, DNASequenceDatabase.SearchContext c) {
 		// TODO: consider speeding up search calls using hard-coded arrays or something.
 
 		/* Match tie-breaking system:
@@ -69,60 +199,91 @@ class RNATypeSearchEngine {
 		 * 5) tRNA 1-mismatch [allowed] match
 		 * 6) rRNA 1-mismatch [allowed] match
 		 * 7) artifacts DNA exact match
-		 * 8) ELSE: classify as unknown 
+		 * 8) contaminant match (if --contaminant-db is given), counted as artifact
+		 * 9) ELSE: classify as unknown 
 		 */	
 		
-		if (databases.get(Config.RNA_TYPE_MI_RNA).search(seq, seqLen, 0, false, false).matches) {
-			return "mirna";
-		} else if (databases.get(Config.RNA_TYPE_T_RNA).search(seq, seqLen, 0, false, false).matches) {
-			return "trna";
-		} else if (databases.get(Config.RNA_TYPE_R_RNA).search(seq, seqLen, 0, false, false).matches) {
-			return "rrna";
-		} else if (databases.get(Config.RNA_TYPE_MI_RNA).search(seq, seqLen, 1, false, false).matches) {
-			return "mirna";
-		} else if (databases.get(Config.RNA_TYPE_T_RNA).search(seq, seqLen, 1, false, false).matches) {
-			return "trna";
-		} else if (databases.get(Config.RNA_TYPE_R_RNA).search(seq, seqLen, 1, false, false).matches) {
-			return "rrna";
-		} else if (databases.get(Config.RNA_TYPE_ART_RNA).slidingWindowSearch(seq, seqLen).matches) {
-			return "artifacts";
+		/* Steps 1-6 are resolved in one pass over the combined database. */
+		int part;
+		if (miRNAIndex != null && MismatchNeighbourhoodIndex.canSearch(seqLen)) {
+			/* The miRNA part (part 0) is resolved by the index, so only 
+			 * matches in the other parts that beat it need to be searched for. */
+			if (miRNAMismatches == 0) {
+				return Config.RNA_TYPE_MI_RNA;
+			}
+			part = combinedDatabase.searchBestPart(seqLen, miRNAMismatches == 1 ? 0 : 1, 1, c);
+		} else {
+			part = combinedDatabase.searchBestPart(seqLen, 1, 0, c);
+		}
+		if (part != DNASequenceDatabase.NO_MATCH) {
+			return partTypes[part];
+		} else if (miRNAMismatches == 1) {
+			return Config.RNA_TYPE_MI_RNA;
+		} else if (databases.get(Config.RNA_TYPE_ART_RNA).slidingWindowSearch(seqLen, 
+				DNASequenceDatabase.NO_MATCH, c)) {
+			return Config.RNA_TYPE_ART_RNA;
+		} else if (artifactsOverlay != null && artifactsOverlay.slidingWindowSearch(seqLen, 
+				DNASequenceDatabase.NO_MATCH, c)) {
+			return Config.RNA_TYPE_ART_RNA;
+		} else if (contaminantIndex != null && contaminantIndex.search(c.queryPacked, seqLen, 
+				Config.CONTAMINANT_DB_MAX_MISMATCHES, null)) {
+			return Config.RNA_TYPE_ART_RNA;
 		} else {
-			return null;
+			return Config.RNA_TYPE_UNKNOWN;
 		}
 	}
 	
-	int getRefSeqCounts(int rnaTypeRRna) {
-		return databases.get(rnaTypeRRna).refSeqCount;
+	/* Feeds the checksums of all loaded databases, in RNA type order, to 'hasher'. */
+	void putDatabaseChecksums(Hasher hasher) {
+		for (int rnaType=0; rnaType < Config.NUMBER_OF_RNA_CLASSES; rnaType++) {
+			if (checksums[rnaType] != null) {
+				hasher.putInt(rnaType);
+				hasher.putBytes(checksums[rnaType].asBytes());
+			}
+			if (overlayChecksums[rnaType] != null) {
+				hasher.putBytes(overlayChecksums[rnaType].asBytes());
+			}
+		}
+		if (contaminantIndex != null) {
+			hasher.putBytes(contaminantIndex.getChecksum().asBytes());
+		}
 	}
 	
-	/* TODO: The output of this function should really be put together with the output of "search"
-	 * into one instance of a new SearchResult object... */
-
+	int getRefSeqCounts(int rnaTypeRRna) {
+		return refSeqCounts[rnaTypeRRna];
+	}
 	
-	void processRefSeqIdSearches(Integer rnaType, DNASequenceHashMapEntry entry, QCStatistics targetStatistics, 
-			Map<Integer,Integer> lowestSeqDetectedLocations) {
-		DNASequenceDatabase.SearchResult lastMatch = DNASequenceDatabase.NO_MATCH_RESULT;
-		while (true) {
-			if (rnaType == Config.RNA_TYPE_ART_RNA) {
-				lastMatch = databases.get(rnaType).slidingWindowSearch(
-						entry.getSeq(), entry.getLength(), lastMatch.refSeqId);
-			} else {
-				lastMatch = databases.get(rnaType).search(entry.getSeq(), entry.getLength(), 1, false, false, lastMatch.refSeqId);
+	/* Returns the ids of all reference sequences of the given RNA type 
+	 * that match 'packedSeq'. */
+	int[] findRefSeqIds(int rnaType, long[] packedSeq, int seqLen, DNASequenceDatabase.SearchContext context) {
+		context.encodeQuery(packedSeq, seqLen);
+		context.hits.clear();
+		if (rnaType == Config.RNA_TYPE_ART_RNA) {
+			DNASequenceDatabase db = databases.get(rnaType);
+			db.slidingWindowSearchAll(seqLen, context);
+			if (artifactsOverlay != null) {
+				int overlayHitsStart = context.hits.size();
+				artifactsOverlay.slidingWindowSearchAll(seqLen, context);
+				for (int i=overlayHitsStart; i < context.hits.size(); i++) {
+					context.hits.values[i] += db.getRefSeqCount();
+				}
 			}
-			if (!lastMatch.matches) {
-				break;
-			} else {
-				targetStatistics.storeFoundRNARead(rnaType, lastMatch.refSeqId);
-				if (lowestSeqDetectedLocations != null) {
-					/* Determine read depth (a.k.a. complexity) */
-					int readDetectionDepth = entry.getFirstDetectedDepth();
-					Integer currentLowestLocation = lowestSeqDetectedLocations.get(lastMatch.refSeqId);
-					if ((currentLowestLocation == null) || (readDetectionDepth < currentLowestLocation)) {
-						lowestSeqDetectedLocations.put(lastMatch.refSeqId, readDetectionDepth);
+		} else {
+			for (int part=0; part < partTypes.length; part++) {
+				if (partTypes[part] == rnaType) {
+					int partHitsStart = context.hits.size();
+					combinedDatabase.searchAllInPart(part, seqLen, 1, context);
+					for (int i=partHitsStart; i < context.hits.size(); i++) {
+						context.hits.values[i] += partRefSeqIdOffsets[part];
 					}
 				}
 			}
 		}
+		if (context.hits.isEmpty()) {
+			return SequenceClassification.NO_REF_SEQS;
+		}
+		context.hits.sortAndDeduplicate();
+		return context.hits.toArray();
 	}
 
 }
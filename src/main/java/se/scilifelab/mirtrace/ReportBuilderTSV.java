@@ -250,23 +250,28 @@ class ReportBuilderTSV {
 		Map<String,CladeFamilyRecord> globalCladeSeqsFound = new HashMap<String,CladeFamilyRecord>();
 
 		for (AnalysisPipelineResult r : results) {
-			for (Map.Entry<String,CladeFamilyRecord> entry : r.getStats().foundCladeSpecificmiRBaseEntries.entrySet()) {
-				CladeFamilyRecord globalRecord;
-				String seq = entry.getKey();
-				if (globalCladeSeqsFound.containsKey(seq)) {
-					globalRecord = globalCladeSeqsFound.get(seq);
-				} else {
-					globalRecord = new CladeFamilyRecord(seq, entry.getValue().cladeId);
-					globalCladeSeqsFound.put(seq, globalRecord);
-				}
-				for (String miRBaseId : entry.getValue().miRBaseIds) {
-					globalRecord.putmiRBaseId(miRBaseId);
+			for (CladeFamilyRecord record : r.getStats().getCladeSpecificmiRBaseEntries()) {
+				CladeFamilyRecord globalRecord = globalCladeSeqsFound.get(record.seq);
+				if (globalRecord == null) {
+					globalRecord = new CladeFamilyRecord(record.seq, record.cladeId);
+					globalCladeSeqsFound.put(record.seq, globalRecord);
 				}
+				globalRecord.putmiRBaseIds(record);
 			}
 		}
 		List<CladeFamilyRecord> globalCladeFamilyRecords = new ArrayList<CladeFamilyRecord>(globalCladeSeqsFound.values());
 		Collections.sort(globalCladeFamilyRecords);
 		
+		/* Per sample counts, by sequence. */
+		List<Map<String,Integer>> sampleCounts = new ArrayList<Map<String,Integer>>();
+		for (AnalysisPipelineResult r : results) {
+			Map<String,Integer> counts = new HashMap<String,Integer>();
+			for (CladeFamilyRecord record : r.getStats().getCladeSpecificmiRBaseEntries()) {
+				counts.put(record.seq, record.count);
+			}
+			sampleCounts.add(counts);
+		}
+		
 		/* Generate output. */
 		
 		out.write("CLADE\tFAMILY_ID\tMIRBASE_IDS\tSEQ");
@@ -280,12 +285,9 @@ class ReportBuilderTSV {
 			Collections.sort(rGlobal.miRBaseIds);
 			String mirBaseIdList = StringUtils.join(rGlobal.miRBaseIds, ",");
 			out.write(Config.CLADES[rGlobal.cladeId] + "\t" + rGlobal.getFamilyId() + "\t" + mirBaseIdList + "\t" + seq);
-			for (AnalysisPipelineResult r : results) {
-				if (r.getStats().foundCladeSpecificmiRBaseEntries.get(seq) != null) {
-					out.write("\t" + r.getStats().foundCladeSpecificmiRBaseEntries.get(seq).count);	
-				} else {
-					out.write("\t0");
-				}
+			for (Map<String,Integer> counts : sampleCounts) {
+				Integer count = counts.get(seq);
+				out.write("\t" + (count != null ? count : 0));
 			}
 			out.write("\n");
 		}
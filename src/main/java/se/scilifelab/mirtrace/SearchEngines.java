@@ -0,0 +1,142 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the RNA type and clade search engines in the background.
+ * 
+ * Parsing and collapsing a sample doesn't need any database, so the 
+ * databases are loaded while the first samples are parsed: every database
+ * file is parsed by a pool of loader threads, and each engine is put 
+ * together by its own thread once its databases are loaded. The engines 
+ * are exposed as futures; callers only block when they actually need one.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class SearchEngines {
+	
+	private ExecutorService loaderPool;
+	private Future<RNATypeSearchEngine> rnaTypeSearchEngine; /* null in trace mode. */
+	private Future<CladeSearchEngine> cladeSearchEngine;
+	
+	SearchEngines(final Config config, final Queue<String> warnings) {
+		loaderPool = Executors.newFixedThreadPool(config.getNumThreads(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "database-loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (config.qcMode()) {
+			rnaTypeSearchEngine = start(new Callable<RNATypeSearchEngine>() {
+				@Override
+				public RNATypeSearchEngine call() throws DBNotFoundException {
+					return new RNATypeSearchEngine(config, warnings, loaderPool);
+				}
+			});
+		}
+		cladeSearchEngine = start(new Callable<CladeSearchEngine>() {
+			@Override
+			public CladeSearchEngine call() throws DBNotFoundException {
+				return new CladeSearchEngine(config, warnings, loaderPool);
+			}
+		});
+	}
+	
+	/* Engines are put together on threads of their own, not in the loader
+	 * pool, since they wait for database loads queued in that pool. */
+	private static <T> Future<T> start(Callable<T> engineBuilder) {
+		FutureTask<T> future = new FutureTask<T>(engineBuilder);
+		Thread t = new Thread(future, "search-engine-loader");
+		t.setDaemon(true);
+		t.start();
+		return future;
+	}
+	
+	/* Blocks until the engine is loaded. Returns null in trace mode. */
+	RNATypeSearchEngine getRNATypeSearchEngine() {
+		return rnaTypeSearchEngine == null ? null : get(rnaTypeSearchEngine);
+	}
+	
+	/* Blocks until the engine is loaded. */
+	CladeSearchEngine getCladeSearchEngine() {
+		return get(cladeSearchEngine);
+	}
+	
+	/* True once all engines are loaded (or have failed to load). Never blocks. */
+	boolean isLoaded() {
+		return (rnaTypeSearchEngine == null || rnaTypeSearchEngine.isDone()) && cladeSearchEngine.isDone();
+	}
+	
+	/* Blocks until all engines are loaded, then stops the loader threads. */
+	void awaitAll() {
+		getRNATypeSearchEngine();
+		getCladeSearchEngine();
+		loaderPool.shutdown();
+	}
+	
+	/* Load failures are fatal, whichever thread first runs into them. */
+	private static <T> T get(Future<T> engine) {
+		try {
+			return await(engine);
+		} catch (DBNotFoundException e) {
+			MiRTrace.fail("ERROR: " + e.getMessage() + "\nAborting.");
+			return null;
+		} catch (RuntimeException e) {
+			/* E.g. a corrupt database or index file. Also fatal on the pipeline
+			 * threads, which would otherwise just end with an unknown status. */
+			MiRTrace.fail("ERROR: Could not load the reference databases (" + 
+					(e.getMessage() == null ? e.toString() : e.getMessage()) + ").\nAborting.");
+			return null;
+		}
+	}
+	
+	/* Future.get(), rethrowing the exception the task failed with. */
+	static <T> T await(Future<T> future) throws DBNotFoundException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while loading databases.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DBNotFoundException) {
+				throw (DBNotFoundException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+/**
+ * The outcome of classifying one unique sequence: its RNA type, the 
+ * reference sequences it maps to and the clade it was traced to.
+ * 
+ * Instances only depend on the sequence itself (and the loaded databases), 
+ * never on the sample it was found in, so they can be shared between 
+ * pipelines through the {@link ClassificationCache}.
+ */
+class SequenceClassification {
+	
+	static final int RNA_TYPE_NOT_MAPPED = -1; /* RNA types are not searched in trace mode. */
+	static final int[] NO_REF_SEQS = new int[0];
+	
+	final int rnaType;
+	final int[] rnaTypeRefSeqIds; /* All refSeq ids of the 'rnaType' database matching the sequence. */
+	final CladeSearchEngine.CladeSearchResult cladeResult; /* null if no clade was found. */
+	final int[] miRBaseEntries; /* Clade database entries (global refSeq ids) matching the sequence prefix. */
+	
+	/* The classifications without any hits, by RNA type + 1. Most unique 
+	 * sequences are classified like this, so the instances are shared. */
+	private static final SequenceClassification[] WITHOUT_HITS = 
+			new SequenceClassification[Config.NUMBER_OF_RNA_CLASSES + 1];
+	static {
+		for (int i=0; i < WITHOUT_HITS.length; i++) {
+			WITHOUT_HITS[i] = new SequenceClassification(i - 1, NO_REF_SEQS, null, NO_REF_SEQS);
+		}
+	}
+	
+	SequenceClassification(int rnaType, int[] rnaTypeRefSeqIds, 
+			CladeSearchEngine.CladeSearchResult cladeResult, int[] miRBaseEntries) {
+		this.rnaType = rnaType;
+		this.rnaTypeRefSeqIds = rnaTypeRefSeqIds;
+		this.cladeResult = cladeResult;
+		this.miRBaseEntries = miRBaseEntries;
+	}
+	
+	/** Like the constructor, but returns a shared instance if there are no hits. */
+	static SequenceClassification create(int rnaType, int[] rnaTypeRefSeqIds, 
+			CladeSearchEngine.CladeSearchResult cladeResult, int[] miRBaseEntries) {
+		if ((rnaTypeRefSeqIds.length == 0) && (cladeResult == null) && (miRBaseEntries.length == 0)) {
+			return WITHOUT_HITS[rnaType + 1];
+		}
+		return new SequenceClassification(rnaType, rnaTypeRefSeqIds, cladeResult, miRBaseEntries);
+	}
+	
+	/** True if the sequence is only counted as an artifact because it 
+	 * matched the --contaminant-db index. Sequences matching an artifact 
+	 * database always have refSeq ids (see RNATypeSearchEngine.search()). */
+	boolean isContaminantMatch() {
+		return (rnaType == Config.RNA_TYPE_ART_RNA) && (rnaTypeRefSeqIds.length == 0);
+	}
+	
+	String getRNATypeName() {
+		if (rnaType == RNA_TYPE_NOT_MAPPED) {
+			return "not_mapped";
+		}
+		return Config.RNA_TYPE_NAMES[rnaType];
+	}
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The classifications of the sequences of one {@link DNASequenceHashMap}, by
+ * sequence number (see {@link DNASequenceHashMap.NewSequenceListener}).
+ *
+ * Filled in by the {@link OnlineClassifier} threads while the hash map is
+ * still being filled, and read by the pipeline once it is complete. Slots
+ * are allocated in chunks as the hash map grows, so that no large contiguous
+ * block is needed up front.
+ *
+ * A table belongs to one use of a hash map: a reallocated or pooled map
+ * gets a new one, so that late results never end up at the sequence
+ * numbers of another sample.
+ *
+ * @author Yrin Eldfjell
+ *
+ */
+class SequenceClassificationTable {
+
+	static final int CHUNK_BITS = 16;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private final AtomicReferenceArray<AtomicReferenceArray<SequenceClassification>> chunks;
+	/* Set once the pipeline no longer needs results, see close(). */
+	private volatile boolean closed = false;
+
+	SequenceClassificationTable() {
+		/* Room for any sequence number, at one reference per chunk. */
+		chunks = new AtomicReferenceArray<AtomicReferenceArray<SequenceClassification>>(
+				(Integer.MAX_VALUE >>> CHUNK_BITS) + 1);
+	}
+
+	void put(int seqNum, SequenceClassification classification) {
+		int c = seqNum >>> CHUNK_BITS;
+		AtomicReferenceArray<SequenceClassification> chunk = chunks.get(c);
+		if (chunk == null) {
+			chunks.compareAndSet(c, null, new AtomicReferenceArray<SequenceClassification>(CHUNK_SIZE));
+			chunk = chunks.get(c);
+		}
+		chunk.set(seqNum & (CHUNK_SIZE - 1), classification);
+	}
+
+	/** Returns null if the sequence has not been classified (yet). */
+	SequenceClassification get(int seqNum) {
+		AtomicReferenceArray<SequenceClassification> chunk = chunks.get(seqNum >>> CHUNK_BITS);
+		if (chunk == null) {
+			return null;
+		}
+		return chunk.get(seqNum & (CHUNK_SIZE - 1));
+	}
+
+	/** Tells the online classifier to skip the sequences still queued for
+	 * this table. Results may still be put afterwards. */
+	void close() {
+		closed = true;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+}
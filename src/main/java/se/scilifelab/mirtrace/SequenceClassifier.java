@@ -0,0 +1,143 @@
+/*******************************************************************************
+    This file is part of miRTrace.
+
+    COPYRIGHT: Marc Friedländer <marc.friedlander@scilifelab.se>, 2018
+    AUTHOR: Yrin Eldfjell <yete@kth.se>
+
+    miRTrace is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, version 3 of the License.
+
+    miRTrace is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program, see the LICENSES file.
+    If not, see <https://www.gnu.org/licenses/>.
+*******************************************************************************/
+package se.scilifelab.mirtrace;
+
+/**
+ * Classifies unique sequences by RNA type and clade, using the shared and 
+ * the persistent classification caches when enabled. Holds the search 
+ * state of one thread.
+ * 
+ * @author Yrin Eldfjell
+ *
+ */
+class SequenceClassifier {
+	
+	Config config;
+	RNATypeSearchEngine rnaTypeSearchEngine;
+	CladeSearchEngine cladeSearchEngine;
+	ClassificationCache cache; /* null if disabled. */
+	PersistentClassificationCache persistentCache; /* null if disabled. */
+	DNASequenceDatabase.SearchContext searchContext = new DNASequenceDatabase.SearchContext();
+	/* The entries of the batch not found in the classification caches. */
+	int[] batchMisses = new int[Config.SEARCH_BATCH_SIZE];
+	long[][] batchMissSeqs = new long[Config.SEARCH_BATCH_SIZE][];
+	int[] batchMissSeqLens = new int[Config.SEARCH_BATCH_SIZE];
+	int[] batchMissRNATypes = new int[Config.SEARCH_BATCH_SIZE];
+	DNASequenceDatabase.SearchContext[] batchContexts = new DNASequenceDatabase.SearchContext[Config.SEARCH_BATCH_SIZE];
+	
+	SequenceClassifier(Config config, RNATypeSearchEngine rnaTypeSearchEngine, CladeSearchEngine cladeSearchEngine, 
+			ClassificationCache cache, PersistentClassificationCache persistentCache) {
+		this.config = config;
+		this.rnaTypeSearchEngine = rnaTypeSearchEngine;
+		this.cladeSearchEngine = cladeSearchEngine;
+		this.cache = cache;
+		this.persistentCache = persistentCache;
+		for (int b=0; b < Config.SEARCH_BATCH_SIZE; b++) {
+			batchContexts[b] = new DNASequenceDatabase.SearchContext();
+		}
+	}
+	
+	/** Classifies the entries batch[b] with seqOK[b] set into classifications[b],
+	 * for b < batchSize (at most Config.SEARCH_BATCH_SIZE). The RNA types of
+	 * all cache misses are searched for together (see 
+	 * RNATypeSearchEngine.searchBatch). The result does not depend on the read count.
+	 */
+	void classifyBatch(DNASequenceHashMapEntry[] batch, boolean[] seqOK, int batchSize, 
+			SequenceClassification[] classifications) {
+		int misses = 0;
+		for (int b=0; b < batchSize; b++) {
+			if (!seqOK[b]) {
+				continue;
+			}
+			classifications[b] = getCachedClassification(batch[b]);
+			if (classifications[b] == null) {
+				batchMisses[misses] = b;
+				batchMissSeqs[misses] = batch[b].getPackedSeq();
+				batchMissSeqLens[misses] = batch[b].getLength();
+				misses++;
+			}
+		}
+		if (config.qcMode()) {
+			rnaTypeSearchEngine.searchBatch(batchMissSeqs, batchMissSeqLens, misses, 
+					batchContexts, batchMissRNATypes);
+		}
+		for (int m=0; m < misses; m++) {
+			int rnaType = config.qcMode() ? batchMissRNATypes[m] : SequenceClassification.RNA_TYPE_NOT_MAPPED;
+			SequenceClassification classification = searchClassification(batchMissSeqs[m], 
+					batchMissSeqLens[m], rnaType);
+			putCachedClassification(batch[batchMisses[m]], classification);
+			classifications[batchMisses[m]] = classification;
+		}
+	}
+	
+	/* Returns null if the sequence is in neither cache. */
+	SequenceClassification getCachedClassification(DNASequenceHashMapEntry entry) {
+		if (cache == null && persistentCache == null) {
+			return null;
+		}
+		/* The packed sequence is 0 past its end, so it can be used as the key. */
+		long[] cacheKey = entry.getPackedSeq();
+		SequenceClassification classification = null;
+		if (cache != null) {
+			classification = cache.get(cacheKey, entry.getLength());
+			if (classification != null) {
+				return classification;
+			}
+		}
+		if (persistentCache != null) {
+			classification = persistentCache.get(cacheKey, entry.getLength());
+			if (classification != null && cache != null) {
+				cache.put(cacheKey, entry.getLength(), classification);
+			}
+		}
+		return classification;
+	}
+	
+	void putCachedClassification(DNASequenceHashMapEntry entry, SequenceClassification classification) {
+		if (cache == null && persistentCache == null) {
+			return;
+		}
+		long[] cacheKey = entry.getPackedSeq();
+		if (persistentCache != null) {
+			persistentCache.put(cacheKey, entry.getLength(), classification);
+		}
+		if (cache != null) {
+			cache.put(cacheKey, entry.getLength(), classification);
+		}
+	}
+	
+	/* 'rnaType' is the result of the RNA type search (QC mode only). */
+	SequenceClassification searchClassification(long[] packedSeq, int seqLen, int rnaType) {
+		int[] rnaTypeRefSeqIds = SequenceClassification.NO_REF_SEQS;
+		if (config.qcMode() && rnaType != Config.RNA_TYPE_UNKNOWN) {
+			rnaTypeRefSeqIds = rnaTypeSearchEngine.findRefSeqIds(rnaType, packedSeq, seqLen, searchContext);
+		}
+		
+		/* Identify matching clade. */
+		CladeSearchEngine.CladeSearchResult cladeResult = cladeSearchEngine.search(packedSeq, seqLen);
+		int[] miRBaseEntries = SequenceClassification.NO_REF_SEQS;
+		if (cladeResult != null) {
+			/* Inquire the database for all mature hairpin entries that matches the current seq prefix exactly. */
+			miRBaseEntries = cladeSearchEngine.findAllMiRBaseEntries(packedSeq, seqLen);
+		}
+		return SequenceClassification.create(rnaType, rnaTypeRefSeqIds, cladeResult, miRBaseEntries);
+	}
+
+}